@@ -0,0 +1,229 @@
+import java.util.NoSuchElementException;
+
+/**
+ *  An {@link EventQueue} backed by a calendar queue (R. Brown, 1988): an array of buckets,
+ *  each one a day of width {@code width}, that wraps around like the days of a year.
+ *  An event goes into the bucket of its day, {@code floor(time / width) mod buckets},
+ *  and is found again by walking from day to day, so inserting and removing take O(1)
+ *  amortized time when the event times are dense and nearly increasing,
+ *  which is the case in a collision simulation.
+ *
+ *  The number of buckets doubles (or halves) when there are twice (or half) as many
+ *  events as buckets, and then the width is set from the spacing of the earliest events.
+ *  If walking to the next event keeps taking more than a few days, the width is recomputed
+ *  as well. Like {@link HeapEventQueue}, every inserted event stays in the queue until it
+ *  comes up, even if it has been invalidated in the meantime, and it can take only
+ *  the earliest event of each prediction instead.
+ */
+public class CalendarEventQueue implements EventQueue {
+    private static final int SAMPLE = 25; // events whose spacing sets the width
+    private static final int MAX_WALK = 4; // days walked per removal (on average) before the width is recomputed
+
+    private CollisionSystemRN.Event[][] buckets; // each one sorted by decreasing time (earliest last)
+    private int[] sizes; // number of events in each bucket
+    private int mask; // number of buckets - 1 (a power of 2)
+    private double width = 1.0; // time spanned by a day
+    private long day; // the day being looked at: no event is earlier than it
+    private int minBucket = -1; // bucket of the earliest event, if known
+    private CollisionSystemRN.Event[] urgent = new CollisionSystemRN.Event[2]; // events at -infinity (stack)
+    private int urgentSize = 0;
+    private int n = 0; // number of events
+    private long walked = 0, removed = 0; // days walked and events removed since the last resize
+    private final boolean earliestOnly;
+
+    /**Initializes an empty queue that takes every predicted event.*/
+    public CalendarEventQueue () {
+        this(false);
+    }
+
+    /**
+     * Initializes an empty queue.
+     *
+     * @param earliestOnly whether to only take the earliest event of each prediction
+     */
+    public CalendarEventQueue (boolean earliestOnly) {
+        this.earliestOnly = earliestOnly;
+        allocate(2);
+    }
+
+    /**Makes an empty calendar with the given number of buckets (a power of 2).*/
+    private void allocate (int count) {
+        buckets = new CollisionSystemRN.Event[count][];
+        sizes = new int[count];
+        mask = count - 1;
+    }
+
+    /**Returns the day of time t.*/
+    private long dayOf (double t) {
+        return (long) Math.floor(t / width);
+    }
+
+    public void insert (CollisionSystemRN.Event e) {
+        n++;
+        minBucket = -1;
+        if (e.time == Double.NEGATIVE_INFINITY) { /*getOut events come before everything.*/
+            if (urgentSize == urgent.length) {
+                urgent = java.util.Arrays.copyOf(urgent, 2 * urgent.length);
+            }
+            urgent[urgentSize++] = e;
+            return;
+        }
+        place(e);
+        if (n > 2 * buckets.length) {
+            resize(2 * buckets.length);
+        }
+    }
+
+    /**Puts an event in the bucket of its day (in order).*/
+    private void place (CollisionSystemRN.Event e) {
+        long d = dayOf(e.time);
+        if (d < day) {
+            day = d;
+        }
+        int i = (int) (d & mask);
+        CollisionSystemRN.Event[] bucket = buckets[i];
+        int size = sizes[i];
+        if (bucket == null) {
+            bucket = buckets[i] = new CollisionSystemRN.Event[4];
+        } else if (size == bucket.length) {
+            bucket = buckets[i] = java.util.Arrays.copyOf(bucket, 2 * size);
+        }
+        /*The later years are at the front, so look from the back (behind earlier or equal events).*/
+        int k = size;
+        while (k > 0 && bucket[k - 1].time <= e.time) {
+            k--;
+        }
+        System.arraycopy(bucket, k, bucket, k + 1, size - k);
+        bucket[k] = e;
+        sizes[i] = size + 1;
+    }
+
+    public CollisionSystemRN.Event min () {
+        if (n == 0) throw new NoSuchElementException("Priority queue underflow");
+        if (urgentSize > 0) {
+            return urgent[urgentSize - 1];
+        }
+        int i = findMin();
+        return buckets[i][sizes[i] - 1];
+    }
+
+    public CollisionSystemRN.Event delMin () {
+        if (n == 0) throw new NoSuchElementException("Priority queue underflow");
+        n--;
+        if (urgentSize > 0) {
+            CollisionSystemRN.Event min = urgent[--urgentSize];
+            urgent[urgentSize] = null;
+            return min;
+        }
+        int i = findMin();
+        CollisionSystemRN.Event min = buckets[i][--sizes[i]];
+        buckets[i][sizes[i]] = null; // avoid loitering
+        minBucket = -1;
+        removed++;
+        if (buckets.length > 2 && n < buckets.length / 2) {
+            resize(buckets.length / 2);
+        } else if (removed >= buckets.length && walked > MAX_WALK * removed) {
+            resize(buckets.length); // the days are too short for the events
+        }
+        return min;
+    }
+
+    /**Returns the bucket of the earliest event (of a non-empty calendar), walking day by day
+     * for a year, and then looking at the earliest event of every bucket if need be.*/
+    private int findMin () {
+        if (minBucket >= 0) {
+            return minBucket;
+        }
+        for (int k = 0; k <= mask; k++, day++, walked++) {
+            int i = (int) (day & mask);
+            if (sizes[i] > 0 && dayOf(buckets[i][sizes[i] - 1].time) == day) {
+                return minBucket = i;
+            }
+        }
+        /*Nothing this year: skip ahead to the earliest event.*/
+        CollisionSystemRN.Event first = null;
+        for (int i = 0; i <= mask; i++) {
+            if (sizes[i] > 0 && (first == null || buckets[i][sizes[i] - 1].time < first.time)) {
+                first = buckets[i][sizes[i] - 1];
+                minBucket = i;
+            }
+        }
+        day = dayOf(first.time);
+        return minBucket;
+    }
+
+    /**Moves every event into a calendar with the given number of buckets, whose width is
+     * three times the average spacing of the earliest events (leaving out unusually large gaps).*/
+    private void resize (int count) {
+        CollisionSystemRN.Event[] all = new CollisionSystemRN.Event[n - urgentSize];
+        int m = 0;
+        for (int i = 0; i <= mask; i++) {
+            if (sizes[i] > 0) {
+                System.arraycopy(buckets[i], 0, all, m, sizes[i]);
+                m += sizes[i];
+            }
+        }
+
+        double w = spacing(all, m);
+        if (w > 0 && w < Double.POSITIVE_INFINITY) {
+            width = 3 * w;
+        }
+        allocate(count);
+        day = Long.MAX_VALUE;
+        for (int k = 0; k < m; k++) {
+            place(all[k]);
+        }
+        if (m == 0) {
+            day = 0;
+        }
+        minBucket = -1;
+        walked = 0;
+        removed = 0;
+    }
+
+    /**Returns the average spacing of the SAMPLE earliest of the events,
+     * leaving out gaps over twice the average, or 0 if they're too few.*/
+    private static double spacing (CollisionSystemRN.Event[] events, int m) {
+        /*Keep the earliest SAMPLE times in a small sorted array (m * SAMPLE at worst, but usually m).*/
+        double[] first = new double[Math.min(SAMPLE, m)];
+        int count = 0;
+        for (int k = 0; k < m; k++) {
+            double t = events[k].time;
+            if (count == first.length && t >= first[count - 1]) {
+                continue;
+            }
+            int j = (count < first.length) ? count++ : count - 1;
+            while (j > 0 && first[j - 1] > t) {
+                first[j] = first[j - 1];
+                j--;
+            }
+            first[j] = t;
+        }
+        if (count < 2) {
+            return 0;
+        }
+        double average = (first[count - 1] - first[0]) / (count - 1);
+        double sum = 0;
+        int gaps = 0;
+        for (int j = 1; j < count; j++) {
+            double gap = first[j] - first[j - 1];
+            if (gap <= 2 * average) {
+                sum += gap;
+                gaps++;
+            }
+        }
+        return (gaps > 0) ? sum / gaps : average;
+    }
+
+    public boolean isEmpty () {
+        return n == 0;
+    }
+
+    public int size () {
+        return n;
+    }
+
+    public boolean onePerParticle () {
+        return earliestOnly;
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ *  A uniform grid of cells (a "cell list") covering the world box.
+ *  Every particle is registered in exactly one cell. Cells are at least as wide
+ *  as the largest particle diameter, so two particles can only touch if their
+ *  cells are neighbours (i.e. differ by at most 1 in every axis).
+ *  This lets the collision system look for collisions among the particles in the
+ *  3^N cells around a particle instead of among all particles.
+ *  A particle must be moved to the next cell (with {@link #cross}) whenever it
+ *  crosses a cell boundary; {@link #timeToCross} predicts when that happens.
+ *
+ *  In many dimensions, 3^N neighbour cells would be many more than there are particles,
+ *  so only the first few axes are divided into cells (see {@link #axes}): the cells are
+ *  slabs (or columns...) of the box, and a particle only checks the particles whose
+ *  projections on those axes are near its own, which is what sweep-and-prune does
+ *  on one axis, kept up to date by the crossings.
+ */
+public class CellGrid {
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+    private static final double SLACK = 1.01; // keeps cells strictly wider than a diameter
+    private static final int CELLS_PER_PARTICLE = 4; // upper bound for the total number of cells
+    static final int MAX_AXES = 31; // the stencil keeps one bit per divided axis in an int
+
+    public final int DIM;
+    public final int axes; // number of axes divided into cells (the first ones)
+    private final ParticleStore store; // the particles (by index)
+    private final int m; // number of cells per axis
+    private final double cellSize;
+    private final int[][] members; // particles in each cell (allocated on demand)
+    private final int[] sizes; // number of particles in each cell
+    private final int[] stride; // stride[i] = m^i
+    private final int[] offset; // scratch odometer for stencil enumeration (by the callers without their own)
+
+    private CellGrid (ParticleStore store, int m, int axes) {
+        int N = store.DIM;
+        this.DIM = N;
+        this.axes = axes;
+        this.store = store;
+        this.m = m;
+        this.cellSize = (ParticleN.BORDERCOORDMAX - ParticleN.BORDERCOORDMIN) / m;
+        this.stride = new int[axes];
+        int total = 1;
+        for (int i = 0; i < axes; i++) {
+            stride[i] = total;
+            total *= m;
+        }
+        this.members = new int[total][];
+        this.sizes = new int[total];
+        this.offset = new int[axes];
+    }
+
+    /**
+     * Creates a grid for the particles in the store and registers all of them,
+     * or returns {@code null} if a grid would not be any faster than checking all pairs
+     * (too few cells per axis, or more neighbour cells than particles).
+     *
+     * @param store the particles to register
+     */
+    public static CellGrid create (ParticleStore store) {
+        return create(store, 0);
+    }
+
+    /**
+     * Like {@link #create(ParticleStore)}, but with cells at least {@code reach} wider than
+     * the largest particle diameter, so that particles whose centers are up to that much
+     * farther apart than touching are still in neighbouring cells.
+     *
+     * @param store the particles to register
+     * @param reach the extra width of the cells
+     */
+    public static CellGrid create (ParticleStore store, double reach) {
+        int axes = axes(store, reach);
+        return create(store, cellsPerAxis(store, axes, reach), axes, reach);
+    }
+
+    /**
+     * Creates a grid with m cells in each of the first {@code axes} axes for the particles
+     * in the store and registers all of them, or returns {@code null} if m is less than 3
+     * (or there are no axes).
+     *
+     * @param store the particles to register
+     * @param m the number of cells per axis
+     * @param axes the number of axes to divide
+     * @throws IllegalArgumentException if there are more axes than dimensions (or than {@link #MAX_AXES}),
+     *         too many cells in all, or cells narrower than the largest particle diameter
+     */
+    public static CellGrid create (ParticleStore store, int m, int axes) {
+        return create(store, m, axes, 0);
+    }
+
+    /**Like {@link #create(ParticleStore, int, int)}, but the cells must be reach wider than a diameter.*/
+    private static CellGrid create (ParticleStore store, int m, int axes, double reach) {
+        if (m < 3 || axes < 1) {
+            return null;
+        }
+        if (axes > Math.min(store.DIM, MAX_AXES)) {
+            throw new IllegalArgumentException("Can't divide " + axes + " axes into cells in "
+                    + store.DIM + " dimensions (at most " + MAX_AXES + ").");
+        }
+        if (Math.pow(m, axes) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(m + "^" + axes + " cells are too many.");
+        }
+        double width = (ParticleN.BORDERCOORDMAX - ParticleN.BORDERCOORDMIN) / m;
+        if (width < 2 * maxRadius(store) + reach) {
+            throw new IllegalArgumentException(m + " cells per axis are narrower than "
+                    + (2 * maxRadius(store) + reach) + ".");
+        }
+        CellGrid grid = new CellGrid(store, m, axes);
+        for (int i = 0; i < store.size; i++) {
+            grid.add(i, grid.cellOf(i));
+        }
+        return grid;
+    }
+
+    /**
+     * Returns the number of axes that {@link #create(ParticleStore)} would divide into cells
+     * for the particles in the store, or 0 if it wouldn't use a grid.
+     * That's the number k that minimizes the expected number of particles in the 3^k cells
+     * around a particle, 3^k * n / m^k for n particles and m cells per axis (which is limited
+     * by the largest diameter and by the total number of cells): few axes leave wide slabs,
+     * while many axes leave few cells per axis. No grid is used unless it would at least
+     * halve the number of particles to check, to make up for the crossings.
+     */
+    public static int axes (ParticleStore store) {
+        return axes(store, 0);
+    }
+
+    private static int axes (ParticleStore store, double reach) {
+        int n = store.size;
+        int best = 0;
+        double bestCost = n / 2.0;
+        for (int k = 1; k <= store.DIM && Math.pow(3, k) < n; k++) {
+            int m = cellsPerAxis(store, k, reach);
+            double cost = Math.pow(3.0 / m, k) * n;
+            if (m >= 3 && cost < bestCost) {
+                best = k;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the number of cells per axis that {@link #create(ParticleStore)} would use
+     * for the particles in the store, or 0 if it wouldn't use a grid.
+     */
+    public static int cellsPerAxis (ParticleStore store) {
+        int axes = axes(store);
+        return (axes == 0) ? 0 : cellsPerAxis(store, axes, 0);
+    }
+
+    /**Returns the number of cells per axis for a grid that divides the given number of axes
+     * (with cells reach wider than a diameter), or 0 if that would be less than 3.*/
+    private static int cellsPerAxis (ParticleStore store, int axes, double reach) {
+        double width = ParticleN.BORDERCOORDMAX - ParticleN.BORDERCOORDMIN;
+        int m = (int) Math.floor(width / ((2 * maxRadius(store) + reach) * SLACK));
+
+        /*Don't create (many) more cells than there are particles.*/
+        int mMax = (int) Math.floor(Math.pow((double) CELLS_PER_PARTICLE * store.size, 1.0 / axes));
+        m = Math.min(m, mMax);
+        return (m < 3) ? 0 : m;
+    }
+
+    /**Returns the largest radius of the particles in the store (or the default radius, if larger).*/
+    private static double maxRadius (ParticleStore store) {
+        double maxRadius = ParticleN.DEFAULTRADIUS;
+        for (int i = 0; i < store.size; i++) {
+            maxRadius = Math.max(maxRadius, store.radius[i]);
+        }
+        return maxRadius;
+    }
+
+    /**
+     * Registers every particle in the cell that contains it now, from scratch
+     * (for when the particles moved without {@link #cross}ing, e.g. in fixed time steps).
+     * Their positions must be synchronized.
+     */
+    public void rebuild () {
+        java.util.Arrays.fill(sizes, 0);
+        for (int i = 0; i < store.size; i++) {
+            add(i, cellOf(i));
+        }
+    }
+
+    /**
+     * Moves particle a to the cell that contains it now, if it isn't there already
+     * (for when it moved without {@link #cross}ing). Its position must be synchronized.
+     */
+    public void update (int a) {
+        int cell = cellOf(a);
+        if (cell != store.cell[a]) {
+            remove(a);
+            add(a, cell);
+        }
+    }
+
+    /**Returns the index (in 0..m-1) of the cell layer containing coordinate x.*/
+    private int layerOf (double x) {
+        int c = (int) Math.floor((x - ParticleN.BORDERCOORDMIN) / cellSize);
+        return Math.max(0, Math.min(m - 1, c));
+    }
+
+    /**Returns the index of the cell containing the center of particle a.*/
+    private int cellOf (int a) {
+        int cell = 0;
+        for (int i = 0; i < axes; i++) {
+            cell += stride[i] * layerOf(store.r[a*DIM + i]);
+        }
+        return cell;
+    }
+
+    /**Returns the cell layer in the Nth axis of the cell with the specified index.*/
+    private int layer (int cell, int N) {
+        return (cell / stride[N]) % m;
+    }
+
+    private void add (int a, int cell) {
+        int[] list = members[cell];
+        if (list == null) {
+            list = new int[4];
+            members[cell] = list;
+        } else if (sizes[cell] == list.length) {
+            list = java.util.Arrays.copyOf(list, 2 * list.length);
+            members[cell] = list;
+        }
+        list[sizes[cell]] = a;
+        store.cell[a] = cell;
+        store.cellSlot[a] = sizes[cell];
+        sizes[cell]++;
+    }
+
+    private void remove (int a) {
+        int cell = store.cell[a];
+        int[] list = members[cell];
+        int last = --sizes[cell];
+        int moved = list[last]; // fill the hole with the last particle
+        list[store.cellSlot[a]] = moved;
+        store.cellSlot[moved] = store.cellSlot[a];
+    }
+
+    /**
+     * Returns the amount of time (counted from when particle a was last synchronized)
+     * until it crosses the boundary of its cell, assuming no intervening collisions.
+     * The boundaries of the world box don't count.
+     * The axis of the crossing is stored in {@code axis[0]}.
+     */
+    public double timeToCross (int a, int[] axis) {
+        double best = INFINITY;
+        axis[0] = -1;
+        for (int i = 0; i < axes; i++) {
+            double vel = store.v[a*DIM + i];
+            double pos = store.r[a*DIM + i];
+            int c = layer(store.cell[a], i);
+            double dt = INFINITY;
+            if (vel > 0 && c < m - 1) {
+                dt = (ParticleN.BORDERCOORDMIN + (c + 1) * cellSize - pos) / vel;
+            } else if (vel < 0 && c > 0) {
+                dt = (pos - ParticleN.BORDERCOORDMIN - c * cellSize) / -vel;
+            }
+            if (dt < best) {
+                best = dt;
+                axis[0] = i;
+            }
+        }
+        return Math.max(best, 0); // the particle may be a hair past the boundary already
+    }
+
+    /**
+     * Moves particle a to the next cell in the Nth axis (in the direction it is moving),
+     * which must be one of the divided axes.
+     * Returns {@code false} (and does nothing) if there is no such cell.
+     */
+    public boolean cross (int a, int N) {
+        double vel = store.v[a*DIM + N];
+        int c = layer(store.cell[a], N);
+        int dir = (vel > 0) ? 1 : -1;
+        if (vel == 0 || c + dir < 0 || c + dir >= m) {
+            return false;
+        }
+        int cell = store.cell[a] + dir * stride[N];
+        remove(a);
+        add(a, cell);
+        return true;
+    }
+
+    /**
+     * Calls {@code visitor} on every particle in the cells neighbouring the cell of particle a
+     * (including its own cell, and a itself).
+     */
+    public void forEachNeighbour (int a, java.util.function.IntConsumer visitor) {
+        forEachNeighbour(a, offset, visitor);
+    }
+
+    /**
+     * Like {@link #forEachNeighbour(int, java.util.function.IntConsumer)}, but uses the given
+     * scratch array (of length {@link #axes} or more), so different threads can enumerate neighbours at once.
+     */
+    public void forEachNeighbour (int a, int[] stencil, java.util.function.IntConsumer visitor) {
+        forEachInStencil(store.cell[a], -1, 0, stencil, visitor);
+    }
+
+    /**
+     * Calls {@code visitor} on every particle in the cells that just became neighbours of
+     * the cell of particle a after it crossed into it along the Nth axis.
+     * That is, the layer of neighbour cells in the direction of motion.
+     */
+    public void forEachNewNeighbour (int a, int N, java.util.function.IntConsumer visitor) {
+        forEachNewNeighbour(a, N, offset, visitor);
+    }
+
+    /**
+     * Like {@link #forEachNewNeighbour(int, int, java.util.function.IntConsumer)}, but uses
+     * the given scratch array (of length {@link #axes} or more).
+     */
+    public void forEachNewNeighbour (int a, int N, int[] stencil, java.util.function.IntConsumer visitor) {
+        int dir = (store.v[a*DIM + N] > 0) ? 1 : -1;
+        forEachInStencil(store.cell[a], N, dir, stencil, visitor);
+    }
+
+    /**Enumerates the 3^axes neighbours of cell (or only those with offset {@code dir} along {@code fixedAxis}),
+     * using {@code offset} as the odometer.*/
+    private void forEachInStencil (int cell, int fixedAxis, int dir, int[] offset, java.util.function.IntConsumer visitor) {
+        /*The axes in which the cell is in the first or last layer, as bit masks
+        * (create checks that there are at most MAX_AXES).*/
+        int first = 0, last = 0;
+        for (int i = 0; i < axes; i++) {
+            offset[i] = (i == fixedAxis) ? dir : -1;
+            int c = layer(cell, i);
+            if (c == 0) first |= 1 << i;
+            if (c == m - 1) last |= 1 << i;
+        }
+        while (true) {
+            /*Visit the cell at the current offset, unless it's outside the grid.*/
+            int neighbour = cell;
+            boolean inside = true;
+            for (int i = 0; i < axes && inside; i++) {
+                int o = offset[i];
+                inside = !(o < 0 && (first & 1 << i) != 0) && !(o > 0 && (last & 1 << i) != 0);
+                neighbour += o * stride[i];
+            }
+            if (inside) {
+                int[] list = members[neighbour];
+                for (int k = 0; k < sizes[neighbour]; k++) {
+                    visitor.accept(list[k]);
+                }
+            }
+
+            /*Next offset (odometer-style); the fixed axis never turns.*/
+            int i = 0;
+            while (i < axes && (i == fixedAxis || offset[i] == 1)) {
+                if (i != fixedAxis) {
+                    offset[i] = -1;
+                }
+                i++;
+            }
+            if (i == axes) {
+                return;
+            }
+            offset[i]++;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  A snapshot of the full state of a simulation at one instant, which can be written to
+ *  and read back from a compact binary file, to resume a long run later.
+ *  The event queue isn't saved: it only depends on the particles, so the collision
+ *  system that is built from the restored particles predicts it again.
+ *
+ *  The file is little-endian, and holds a header followed by one array per property
+ *  (a structure of arrays, like {@link ParticleStore}):
+ *  <pre>
+ *   int     magic ("HDPC"), version
+ *   int     DIM, size (number of particles)
+ *   double  time
+ *   long    seed (StdRandom was reseeded with this when the snapshot was taken)
+ *   double  r[size*DIM], v[size*DIM]   positions (at time) and velocities
+ *   double  radius[size], mass[size]
+ *   float   color[size*4]
+ *   byte    immovable[size]            0 or 1
+ *   byte    status[size]               S/I/R state of each being (or 0)
+ *   double  timer[size]                time left until each being recovers
+ *  </pre>
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x48445043; // "HDPC"
+    private static final int VERSION = 1;
+    private static final int HEADER = 4 * 4 + 8 + 8; // bytes before the arrays
+
+    public final int DIM;
+    public final int size; // number of particles
+    public final double time; // simulation time of the snapshot
+    public final long seed; // seed to restart StdRandom with
+    final double[] r; // positions at time
+    final double[] v;
+    final double[] radius;
+    final double[] mass;
+    final float[] color;
+    final boolean[] immovable;
+    final byte[] status; // for the app to fill in
+    final double[] timer; // for the app to fill in
+
+    /**
+     * Initializes an empty snapshot (all particles at rest at the origin).
+     *
+     * @param N the number of spatial dimensions
+     * @param size the number of particles
+     * @param time the simulation time
+     * @param seed the seed to restart StdRandom with
+     */
+    public Checkpoint (int N, int size, double time, long seed) {
+        this.DIM = N;
+        this.size = size;
+        this.time = time;
+        this.seed = seed;
+        r = new double[size * N];
+        v = new double[size * N];
+        radius = new double[size];
+        mass = new double[size];
+        color = new float[size * 4];
+        immovable = new boolean[size];
+        status = new byte[size];
+        timer = new double[size];
+    }
+
+    /**
+     * Takes a snapshot of the particles of a collision engine at its current time.
+     * Only the array copies happen here; call {@link #write} (on another thread, if you like)
+     * to save it. The status and timer of every particle are left for the caller.
+     *
+     * @param cs the collision engine (which mustn't be advanced in the meantime)
+     * @param seed the seed StdRandom was just restarted with
+     */
+    public static Checkpoint capture (CollisionEngine cs, long seed) {
+        ParticleStore store = cs.store();
+        double t = cs.time();
+        Checkpoint c = new Checkpoint(store.DIM, store.size, t, seed);
+        for (int i = 0; i < store.size; i++) {
+            for (int k = 0; k < store.DIM; k++) {
+                c.r[i*store.DIM + k] = store.position(i, k, t);
+            }
+        }
+        System.arraycopy(store.v, 0, c.v, 0, c.v.length);
+        System.arraycopy(store.radius, 0, c.radius, 0, store.size);
+        System.arraycopy(store.mass, 0, c.mass, 0, store.size);
+        System.arraycopy(store.color, 0, c.color, 0, c.color.length);
+        System.arraycopy(store.immovable, 0, c.immovable, 0, store.size);
+        return c;
+    }
+
+    /**Returns the position of particle i (at the time of the snapshot).*/
+    public double[] position (int i) {
+        return java.util.Arrays.copyOfRange(r, i * DIM, (i + 1) * DIM);
+    }
+
+    /**Returns the velocity of particle i.*/
+    public double[] velocity (int i) {
+        return java.util.Arrays.copyOfRange(v, i * DIM, (i + 1) * DIM);
+    }
+
+    /**Returns the color of particle i.*/
+    public float[] color (int i) {
+        return java.util.Arrays.copyOfRange(color, 4 * i, 4 * i + 4);
+    }
+
+    /**Returns the number of bytes in the file.*/
+    private long bytes () {
+        return bytes(DIM, size);
+    }
+
+    /**Returns the number of bytes in the file of a snapshot of size particles in N dimensions.*/
+    private static long bytes (int N, int size) {
+        return HEADER + size * perParticle(N);
+    }
+
+    /**Returns the number of bytes each particle takes in the file, in N dimensions.*/
+    private static long perParticle (int N) {
+        return 2L * 8 * N + 8 + 8 + 4 * 4 + 1 + 1 + 8;
+    }
+
+    /**
+     * Writes the snapshot to a file. It is written to a temporary file next to it first,
+     * which then replaces the file, so an interrupted write never ruins an older checkpoint.
+     *
+     * @param path the file
+     * @throws IOException if the file can't be written
+     */
+    public void write (Path path) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect((int) bytes()).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(DIM).putInt(size).putDouble(time).putLong(seed);
+        buf.asDoubleBuffer().put(r).put(v).put(radius).put(mass);
+        buf.position(buf.position() + 8 * (r.length + v.length + radius.length + mass.length));
+        buf.asFloatBuffer().put(color);
+        buf.position(buf.position() + 4 * color.length);
+        for (boolean b : immovable) {
+            buf.put((byte) (b ? 1 : 0));
+        }
+        buf.put(status);
+        buf.asDoubleBuffer().put(timer);
+        buf.clear();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot from a file.
+     *
+     * @param path the file
+     * @throws IOException if the file can't be read or isn't a checkpoint
+     */
+    public static Checkpoint read (Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(ch, header);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(path + " isn't a checkpoint (or is from another version).");
+            }
+            /*Check the header against the file before allocating anything it asks for
+            (the whole file is read into one buffer, so it must fit in an int).*/
+            int N = header.getInt(), size = header.getInt();
+            if (N < 1 || size < 0 || size > (Integer.MAX_VALUE - HEADER) / perParticle(N)
+                    || ch.size() != bytes(N, size)) {
+                throw new IOException(path + " is truncated or corrupt.");
+            }
+            Checkpoint c = new Checkpoint(N, size, header.getDouble(), header.getLong());
+
+            ByteBuffer buf = ByteBuffer.allocateDirect((int) (c.bytes() - HEADER)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(ch, buf);
+            buf.asDoubleBuffer().get(c.r).get(c.v).get(c.radius).get(c.mass);
+            buf.position(buf.position() + 8 * (c.r.length + c.v.length + c.radius.length + c.mass.length));
+            buf.asFloatBuffer().get(c.color);
+            buf.position(buf.position() + 4 * c.color.length);
+            for (int i = 0; i < size; i++) {
+                c.immovable[i] = buf.get() != 0;
+            }
+            buf.get(c.status);
+            buf.asDoubleBuffer().get(c.timer);
+            return c;
+        }
+    }
+
+    /**Reads from the channel until the buffer is full, then flips it.*/
+    private static void readFully (FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0) {
+                throw new IOException("Unexpected end of checkpoint.");
+            }
+        }
+        buf.flip();
+    }
+
+    /**
+     * Writes checkpoints to a file on a background thread, one at a time, so that
+     * the simulation only has to wait for the (cheap) {@link #capture}.
+     * While a checkpoint is being written, there's no point in capturing another one.
+     */
+    public static class Writer {
+        private final Path path;
+        private final ExecutorService thread;
+        private volatile boolean busy = false;
+
+        /**Initializes a writer of checkpoints to the given file.*/
+        public Writer (Path path) {
+            this.path = path;
+            this.thread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /**Checks if a checkpoint is still being written.*/
+        public boolean isBusy () {
+            return busy;
+        }
+
+        /**Starts writing the checkpoint in the background, unless another one is still being written.
+         * Returns whether it was started.*/
+        public boolean submit (Checkpoint c) {
+            if (busy) {
+                return false;
+            }
+            busy = true;
+            thread.execute(() -> {
+                try {
+                    c.write(path);
+                } catch (IOException e) {
+                    System.err.println("Couldn't write checkpoint: " + e.getMessage());
+                } finally {
+                    busy = false;
+                }
+            });
+            return true;
+        }
+
+        /**Waits for the checkpoint being written (if any), and stops the background thread.*/
+        public void shutdown () {
+            thread.shutdown();
+            try {
+                thread.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
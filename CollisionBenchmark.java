@@ -0,0 +1,211 @@
+import edu.princeton.cs.algs4.StdRandom;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ *  Benchmarks for the collision engines (CollisionSystemRN + ParticleN + the event queue,
+ *  with a grid of cells or with neighbour lists, or TimeSteppedCollisionSystem). For every combination of the parameters below, it builds
+ *  a system of random particles (with a fixed seed, so runs are reproducible), then runs
+ *  warm-up and measurement iterations of {@code advance} in 1/60 time-unit steps, JMH style,
+ *  and reports:
+ *
+ *    - the cost of one predict (of every particle once more, after the measurements,
+ *      including putting its events in the queue);
+ *    - processed events per second of wall-clock time (mean and standard deviation);
+ *    - bytes allocated per event and the allocation rate;
+ *    - the average size of the event queue;
+ *    - simulated time per second of wall-clock time (the only figure that compares engines).
+ *
+ *  For the time-stepped engine, the "events" are the collisions it resolved, the predict
+ *  column is the cost of setting it up (per particle), and there's no queue.
+ *
+ *  Usage: {@code java CollisionBenchmark [OPTIONS]}, where every option takes a
+ *  comma-separated list:
+ *  <pre>
+ *   --dim 3,4,8,16            number of dimensions
+ *   --pnum 100,1000,10000     number of particles (try 100000 too, if you have the time)
+ *   --radius 0.5,1            particle radius
+ *   --engine event,timestep   collision engine (event-driven, event-driven with neighbour
+ *                             lists, or time-stepped: event, lists or timestep)
+ *   --queue heap,indexed      event queue (heap, earliest, indexed, primitive, calendar
+ *                             or calendarearliest) of the event-driven engine
+ *   --step 0.01               time step of the time-stepped engine
+ *   --skin 2                  skin of the neighbour lists
+ *   --seed 42                 StdRandom seed
+ *   --warmup 1                warm-up iterations
+ *   --iterations 3            measurement iterations
+ *   --time 1                  seconds of wall-clock time per iteration
+ *  </pre>
+ *  Remember {@code --add-modules jdk.incubator.vector} to benchmark the SIMD kernels.
+ */
+public class CollisionBenchmark {
+    private static final double FRAME = 1.0 / 60; // simulated time per call to advance
+
+    private static String[] dims = {"3", "4", "8", "16"};
+    private static String[] pnums = {"100", "1000", "10000"};
+    private static String[] radii = {"0.5", "1"};
+    private static String[] engines = {"event"};
+    private static String[] queues = {"heap", "indexed"};
+    private static double step = 0.01;
+    private static double skin = 2;
+    private static long seed = 42;
+    private static int warmup = 1;
+    private static int iterations = 3;
+    private static double seconds = 1;
+
+    private static final com.sun.management.ThreadMXBean MX =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+
+    /**Creates the event queue with the given name for n particles.*/
+    static EventQueue makeQueue (String name, int n) {
+        switch (name) {
+            case "heap":
+                return new HeapEventQueue();
+            case "earliest":
+                return new HeapEventQueue(true);
+            case "indexed":
+                return new IndexedEventQueue(n);
+            case "primitive":
+                return new PrimitiveEventQueue(n);
+            case "calendar":
+                return new CalendarEventQueue();
+            case "calendarearliest":
+                return new CalendarEventQueue(true);
+            default:
+                throw new IllegalArgumentException("Unknown queue: " + name);
+        }
+    }
+
+    /**Fraction of the box volume occupied by n balls of the given radius in N dimensions.*/
+    private static double packingFraction (int N, int n, double radius) {
+        /*Volume of the unit N-ball: V(0) = 1, V(1) = 2, V(k) = V(k-2) * 2pi/k.*/
+        double unit = (N % 2 == 0) ? 1 : 2;
+        for (int k = (N % 2 == 0) ? 2 : 3; k <= N; k += 2) {
+            unit *= 2 * Math.PI / k;
+        }
+        double box = Math.pow(ParticleN.BORDERCOORDMAX - ParticleN.BORDERCOORDMIN, N);
+        return n * unit * Math.pow(radius, N) / box;
+    }
+
+    /**Runs one configuration and prints a line of results.*/
+    private static void run (int N, int n, double radius, String engine, String queue) {
+        StdRandom.setSeed(seed);
+        ParticleN[] parts = new ParticleN[n];
+        for (int i = 0; i < n; i++) {
+            parts[i] = new ParticleN(N, radius);
+        }
+
+        long start = System.nanoTime();
+        CollisionSystemRN cs = null;
+        TimeSteppedCollisionSystem ts = null;
+        if (engine.equals("timestep")) {
+            ts = new TimeSteppedCollisionSystem(parts, N, step);
+        } else if (engine.equals("event")) {
+            cs = new CollisionSystemRN(parts, N, false, false, makeQueue(queue, n));
+        } else if (engine.equals("lists")) {
+            cs = new CollisionSystemRN(parts, N, false, false, makeQueue(queue, n), 0, skin);
+        } else {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+        CollisionEngine ce = (cs != null) ? cs : ts;
+        double nsPerPredict = (double) (System.nanoTime() - start) / n; // setting up, for the time-stepped engine
+
+        long thread = Thread.currentThread().getId();
+        ArrayList<Double> rates = new ArrayList<>();
+        long totalEvents = 0, totalBytes = 0, totalNanos = 0, queueSum = 0, frames = 0;
+        double totalTime = 0;
+        for (int it = 0; it < warmup + iterations; it++) {
+            long events0 = (cs != null) ? cs.eventCount() : ts.collisionCount();
+            double time0 = ce.time();
+            long bytes0 = MX.getThreadAllocatedBytes(thread);
+            long t0 = System.nanoTime();
+            long elapsed;
+            do {
+                ce.advance(FRAME);
+                if (it >= warmup) {
+                    queueSum += (cs != null) ? cs.queueSize() : 0;
+                    frames++;
+                }
+                elapsed = System.nanoTime() - t0;
+            } while (elapsed < seconds * 1e9);
+
+            if (it >= warmup) {
+                long events = ((cs != null) ? cs.eventCount() : ts.collisionCount()) - events0;
+                totalEvents += events;
+                totalTime += ce.time() - time0;
+                totalBytes += MX.getThreadAllocatedBytes(thread) - bytes0;
+                totalNanos += elapsed;
+                rates.add(events / (elapsed / 1e9));
+            }
+        }
+
+        /*Predict everybody again, last, since that leaves duplicate events in the queue.*/
+        if (cs != null) {
+            long p0 = System.nanoTime();
+            for (ParticleN p : cs.particles()) {
+                cs.predict(p);
+            }
+            nsPerPredict = (double) (System.nanoTime() - p0) / n;
+        }
+
+        double mean = 0;
+        for (double r : rates) mean += r;
+        mean /= rates.size();
+        double var = 0;
+        for (double r : rates) var += (r - mean) * (r - mean);
+        double sd = (rates.size() > 1) ? Math.sqrt(var / (rates.size() - 1)) : 0;
+
+        System.out.println(String.format(Locale.ROOT,
+                "%4d %7d %6.2f %7.4f %-8s %-16s %12.0f %14.0f %10.0f %10.1f %10.1f %10d %10.3f",
+                N, n, radius, packingFraction(N, n, radius), engine, (cs != null) ? queue : "-",
+                nsPerPredict, mean, sd,
+                (totalEvents > 0) ? (double) totalBytes / totalEvents : 0.0,
+                totalBytes / 1e6 / (totalNanos / 1e9),
+                (frames > 0) ? queueSum / frames : 0,
+                totalTime / (totalNanos / 1e9)));
+    }
+
+    public static void main (String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String[] values = args[i + 1].split(",");
+            switch (args[i]) {
+                case "--dim": dims = values; break;
+                case "--pnum": pnums = values; break;
+                case "--radius": radii = values; break;
+                case "--engine": engines = values; break;
+                case "--queue": queues = values; break;
+                case "--step": step = Double.parseDouble(values[0]); break;
+                case "--skin": skin = Double.parseDouble(values[0]); break;
+                case "--seed": seed = Long.parseLong(values[0]); break;
+                case "--warmup": warmup = Integer.parseInt(values[0]); break;
+                case "--iterations": iterations = Integer.parseInt(values[0]); break;
+                case "--time": seconds = Double.parseDouble(values[0]); break;
+                default:
+                    System.err.println("Unrecognized option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (args.length % 2 != 0) {
+            System.err.println("Every option takes a value.");
+            System.exit(1);
+        }
+
+        System.out.println("Vector API: " + Couve.usingVectorAPI() + ", seed: " + seed
+                + ", " + warmup + " warm-up and " + iterations + " measured iterations of " + seconds + " s");
+        System.out.println(" DIM    PNUM radius packing engine   queue            ns/predict       events/s   +/- (sd)"
+                + "    B/event       MB/s  avg queue  sim t/s");
+        for (String dim : dims) {
+            for (String pnum : pnums) {
+                for (String radius : radii) {
+                    for (String engine : engines) {
+                        /*The queue only matters to the event-driven engine.*/
+                        String[] qs = engine.equals("timestep") ? new String[] {"-"} : queues;
+                        for (String queue : qs) {
+                            run(Integer.parseInt(dim), Integer.parseInt(pnum), Double.parseDouble(radius), engine, queue);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ *  A simulation of particles moving in the box and colliding elastically with each other
+ *  and with the walls. The implementations differ in how they find the collisions:
+ *  {@link CollisionSystemRN} predicts them (event-driven), {@link SectorCollisionSystem}
+ *  does that in parallel sectors, and {@link TimeSteppedCollisionSystem} moves everybody
+ *  in fixed steps and looks for overlaps.
+ */
+public interface CollisionEngine {
+    /**Advances the simulation of the system of particles in {@code dt} units of time.*/
+    void advance (double dt);
+
+    /**Returns the current simulation time.*/
+    double time ();
+
+    /**Returns the state of all particles. Particles may have been synchronized at different
+     * times; use {@link ParticleStore#position} to get positions at the current time.*/
+    ParticleStore store ();
+
+    /**Returns the particles (views of the store, by index).*/
+    ParticleN[] particles ();
+}
@@ -1,12 +1,10 @@
-import edu.princeton.cs.algs4.MinPQ;
-
 /**
  *  The {@code CollisionSystem} class represents a collection of particles
  *  moving in a box, according to the laws of elastic collision.
  *  This event-based simulation relies on a priority queue.
  *  No rendering is done inside this class.
  */
-public class CollisionSystemRN {
+public class CollisionSystemRN implements CollisionEngine {
 
     /*TODO B1. preprocessing*/
     // TODO: [particle limit] what if someone tries to spawn more particles than fit inside the volume? maybe set a cap?
@@ -23,37 +21,183 @@ public class CollisionSystemRN {
     private final boolean DUMPEVENTS;
     private final int DIM;
     private double t = 0.0; // simulation clock time
-    private MinPQ<Event> pq = new MinPQ<Event>(); // the priority queue
-    ParticleN[] particles; // the array of particles
+    private long eventCount = 0; // number of processed events
+    private final EventQueue pq; // the priority queue
+    private final CellGrid grid; // broad phase; null if every pair should be checked (or with neighbour lists)
+    private final NeighbourLists lists; // broad phase instead of the grid; null if not used
+    private final KdTree immovables; // the immovable particles, if there are any and no broad phase; null otherwise
+    private static final int BLOCK = 64; // candidates per call to Couve.pairProducts
+    private static final int PARALLEL_THRESHOLD = 4096; // particles from which the initial predictions are parallel
+    private static final int PARALLEL_BLOCK = 256; // particles per parallel task
+    private final Predictor predictor; // scratch for predicting during the simulation
+    Listener listener; // told about every collision; null if nobody's listening
+    final ParticleStore store; // the state of all particles
+    ParticleN[] particles; // the array of particles (views of the store, by index)
 
     /**
      * Initializes a system with the specified collection of particles.
      * The individual particles will be mutated during the simulation.
+     * Their state is moved into a new {@link ParticleStore}, which they become views of.
      *
      * @param particles the array of particles
      * @param N the number of spatial dimensions
      * @param DUMPWALLS whether to dump information about particle-wall collisions
+     * @param DUMPEVENTS whether to dump information about every processed event
+     * @param pq the (empty) event queue to use
      */
-    public CollisionSystemRN (ParticleN[] particles, int N, boolean DUMPWALLS, boolean DUMPEVENTS) {
+    public CollisionSystemRN (ParticleN[] particles, int N, boolean DUMPWALLS, boolean DUMPEVENTS, EventQueue pq) {
+        this(storeOf(particles, N), particles.clone(), DUMPWALLS, DUMPEVENTS, pq, 0, -1, -1, 0); // defensive copy
+    }
+
+    /**
+     * Initializes a system with the specified collection of particles, starting at time t0
+     * (e.g. to resume from a {@link Checkpoint}): their positions are taken to be the ones at t0.
+     * The individual particles will be mutated during the simulation.
+     *
+     * @param particles the array of particles
+     * @param N the number of spatial dimensions
+     * @param DUMPWALLS whether to dump information about particle-wall collisions
+     * @param DUMPEVENTS whether to dump information about every processed event
+     * @param pq the (empty) event queue to use
+     * @param t0 the initial simulation time
+     */
+    public CollisionSystemRN (ParticleN[] particles, int N, boolean DUMPWALLS, boolean DUMPEVENTS, EventQueue pq,
+                              double t0) {
+        this(particles, N, DUMPWALLS, DUMPEVENTS, pq, t0, 0);
+    }
+
+    /**
+     * Initializes a system with the specified collection of particles, starting at time t0,
+     * which looks for collisions among {@link NeighbourLists} instead of a grid of cells.
+     * The individual particles will be mutated during the simulation.
+     * Their state is moved into a new {@link ParticleStore}, which they become views of.
+     *
+     * @param particles the array of particles (with their positions at time t0)
+     * @param N the number of spatial dimensions
+     * @param DUMPWALLS whether to dump information about particle-wall collisions
+     * @param DUMPEVENTS whether to dump information about every processed event
+     * @param pq the (empty) event queue to use
+     * @param t0 the initial simulation time
+     * @param skin how much farther than touching the particles in a neighbour list may be
+     *             (0 for no neighbour lists)
+     */
+    public CollisionSystemRN (ParticleN[] particles, int N, boolean DUMPWALLS, boolean DUMPEVENTS, EventQueue pq,
+                              double t0, double skin) {
+        this(storeOf(particles, N, t0), particles.clone(), DUMPWALLS, DUMPEVENTS, pq, t0, -1, -1, skin); // defensive copy
+    }
+
+    /**
+     * Initializes a system that simulates the particles in the store directly.
+     *
+     * @param store the particles
+     * @param DUMPWALLS whether to dump information about particle-wall collisions
+     * @param DUMPEVENTS whether to dump information about every processed event
+     * @param pq the (empty) event queue to use
+     */
+    public CollisionSystemRN (ParticleStore store, boolean DUMPWALLS, boolean DUMPEVENTS, EventQueue pq) {
+        this(store, store.views(), DUMPWALLS, DUMPEVENTS, pq, 0, -1, -1, 0);
+    }
+
+    /**
+     * Initializes a system that simulates the particles in the store directly, starting
+     * at time t0 (the particles may have been synchronized at different times before that).
+     *
+     * @param store the particles
+     * @param particles views of the particles in the store, by index
+     * @param DUMPWALLS whether to dump information about particle-wall collisions
+     * @param DUMPEVENTS whether to dump information about every processed event
+     * @param pq the (empty) event queue to use
+     * @param t0 the initial simulation time
+     * @param cellsPerAxis the number of grid cells per axis (0 for no grid), or -1 to choose
+     * @param gridAxes the number of axes divided into cells, or -1 to choose (with cellsPerAxis)
+     * @param skin the skin of the neighbour lists to use instead of a grid, or 0 for none
+     */
+    CollisionSystemRN (ParticleStore store, ParticleN[] particles, boolean DUMPWALLS, boolean DUMPEVENTS, EventQueue pq,
+                       double t0, int cellsPerAxis, int gridAxes, double skin) {
         if (ParticleN.DEFAULTRADIUS >= (ParticleN.BORDERCOORDMAX-ParticleN.BORDERCOORDMIN)/20) {
             System.err.println("This program cannot deal with highly energetic systems properly.");
         }
-        this.particles = particles.clone();   // defensive copy
-        this.DIM = N;
+        this.store = store;
+        this.particles = particles;
+        this.DIM = store.DIM;
         this.DUMPWALLS = DUMPWALLS;
         this.DUMPEVENTS = DUMPEVENTS;
+        this.pq = pq;
+        this.t = t0;
+
+        /*Sort the particles into cells, if that's worth it (on fewer axes in many dimensions),
+        * or into neighbour lists.*/
+        if (skin > 0) {
+            store.moveAllTo(t0);
+            this.lists = new NeighbourLists(store, skin);
+            this.grid = null;
+        } else {
+            this.lists = null;
+            this.grid = (cellsPerAxis < 0) ? CellGrid.create(store) : CellGrid.create(store, cellsPerAxis, gridAxes);
+        }
+        this.immovables = (grid == null && lists == null) ? KdTree.ofImmovables(store) : null;
+        this.predictor = new Predictor();
 
         /*Initialize PQ with collision events.*/
-        for (int i = 0; i < particles.length; i++) {
-            ParticleN part = particles[i];
+        predictAll();
+    }
+
+    /**Fills the PQ with every particle's predicted (possible) collisions, all at once.
+     * With many particles (and cores), the particles are predicted in blocks in parallel.*/
+    private void predictAll () {
+        int n = particles.length;
+        if (n < PARALLEL_THRESHOLD || java.util.concurrent.ForkJoinPool.getCommonPoolParallelism() < 2) {
+            for (ParticleN part : particles) {
+                predictor.predict(part);
+            }
+            flush(predictor);
+            return;
+        }
 
-            if (part.DIM != N) {
-                throw new IndexOutOfBoundsException("A particle has the wrong number of dimensions. All particles must be N-dimensional");
+        store.moveAllTo(t); // so that the predictors only read the store
+        Predictor[] blocks = new Predictor[(n + PARALLEL_BLOCK - 1) / PARALLEL_BLOCK];
+        java.util.stream.IntStream.range(0, blocks.length).parallel().forEach(k -> {
+            Predictor p = new Predictor();
+            for (int i = k * PARALLEL_BLOCK; i < Math.min(n, (k + 1) * PARALLEL_BLOCK); i++) {
+                p.predict(particles[i]);
             }
+            blocks[k] = p;
+        });
 
-            /*Fill the PQ with this particle's predicted (possible) collisions.*/
-            predict(part);
+        EventBatch all = new EventBatch(particles);
+        for (Predictor p : blocks) {
+            all.addAll(p.batch);
         }
+        pq.insertAll(all);
+    }
+
+    /**Moves the particles into a new store (in order) and returns it.*/
+    static ParticleStore storeOf (ParticleN[] particles, int N) {
+        ParticleStore store = new ParticleStore(N, particles.length);
+        for (int i = 0; i < particles.length; i++) {
+            particles[i].attach(store, i); // checks the number of dimensions
+        }
+        return store;
+    }
+
+    /**Moves the particles into a new store (in order), with their positions taken to be the ones at time t0.*/
+    static ParticleStore storeOf (ParticleN[] particles, int N, double t0) {
+        ParticleStore store = storeOf(particles, N);
+        java.util.Arrays.fill(store.time, t0);
+        return store;
+    }
+
+    /**
+     * Initializes a system with the specified collection of particles.
+     * The individual particles will be mutated during the simulation.
+     *
+     * @param particles the array of particles
+     * @param N the number of spatial dimensions
+     * @param DUMPWALLS whether to dump information about particle-wall collisions
+     * @param DUMPEVENTS whether to dump information about every processed event
+     */
+    public CollisionSystemRN (ParticleN[] particles, int N, boolean DUMPWALLS, boolean DUMPEVENTS) {
+        this(particles, N, DUMPWALLS, DUMPEVENTS, new HeapEventQueue());
     }
 
     /**
@@ -67,45 +211,258 @@ public class CollisionSystemRN {
         this(particles, N, false, false);
     }
 
-    /*Marks events in the PQ containing particle a as invalid.*/
-    private void clearPQof (ParticleN a) {
-        for (Event e : pq) {
-            if (e.a == a || e.b == a) {
-                e.knownInvalid = true;
-            }
+    /**Updates the priority queue with all new events for particle a
+     * (none if it's immovable: see {@link Predictor#predict}).
+     * Predicting a particle again is harmless: at worst, the PQ gets duplicate events.*/
+    void predict (ParticleN a) {
+        predictor.predict(a);
+        flush(predictor);
+    }
+
+    /**Moves particle a into the next cell in the Nth axis and updates the PQ
+     * with the collisions against its new neighbours.
+     * Its trajectory hasn't changed, so its other events are still valid
+     * (unless the PQ only kept the crossing, in which case we start over).*/
+    private void cross (ParticleN a, int N) {
+        boolean crossed = grid.cross(a.id, N);
+        if (pq.onePerParticle()) {
+            predict(a);
+            return;
+        }
+        if (crossed) {
+            predictor.predictNewNeighbours(a, N);
+        }
+        predictor.predictCrossing(a);
+        flush(predictor);
+    }
+
+    /**Rebuilds the neighbour list of particle a (which has moved half the skin since it was
+     * last built) and updates the PQ with the collisions against its new neighbours.
+     * Its trajectory hasn't changed, so its other events are still valid
+     * (unless the PQ only kept the expiry, in which case we start over).*/
+    private void expire (ParticleN a) {
+        if (pq.onePerParticle()) {
+            lists.rebuild(a.id, null);
+            predict(a);
+            return;
         }
+        predictor.predictNewListed(a);
+        predictor.predictExpiry(a);
+        flush(predictor);
     }
 
-    /** Updates the priority queue with all new events for particle a.
-     * This method has a special purpose if the particle is immovable:
-     * to guarantee that it is not inside other particles.*/
-    private void predict (ParticleN a) {
-        assert a != null : "Can't predict the behavior of a null particle, now, can we?";
-
-        /* Particle-particle collisions.*/
-        for (ParticleN part : particles) {
-            double dt = a.timeToHit(part);
-            if (dt < Double.POSITIVE_INFINITY) {
-                pq.insert(new Event(t + dt, a, part, -1));
+    /**Moves the events found by p into the PQ, all at once.*/
+    private void flush (Predictor p) {
+        pq.insertAll(p.batch);
+        p.batch.clear();
+    }
+
+    /**
+     * Finds the (possible) future events of particles, and collects them in a batch
+     * for the PQ. It has its own scratch space, so different threads can predict
+     * at the same time with different Predictors, as long as nobody changes the store.
+     */
+    private final class Predictor {
+        private final int[] crossAxis = new int[1]; // scratch for grid.timeToCross
+        private final int[] stencil = new int[DIM]; // scratch for the grid's neighbour enumeration
+        private int[] candidates = new int[BLOCK]; // particles that predict must check against
+        private int candidateCount = 0;
+        private final java.util.function.IntConsumer gatherer = this::gather;
+        private final double[] dvdr = new double[BLOCK], dvdv = new double[BLOCK], drdr = new double[BLOCK];
+        private final KdTree.Query immovableQuery = (immovables == null) ? null : immovables.new Query();
+        private final EventBatch batch = new EventBatch(particles); // the events found so far
+        /*The earliest event found by predict (for one-event-per-particle queues), if any.*/
+        private double earliestTime;
+        private int earliestB, earliestN;
+        private Event.Kind earliestKind;
+
+        /**Adds a predicted event (of a, with b, or in the Nth axis) to the batch.
+         * If the PQ only keeps one event per particle, just remember the earliest one
+         * until predict is done.*/
+        private void offer (double time, ParticleN a, int b, int N, Event.Kind kind) {
+            if (!pq.onePerParticle()) {
+                batch.add(time, a.id, b, N, kind);
+            } else if (earliestKind == null || time < earliestTime) {
+                earliestTime = time;
+                earliestB = b;
+                earliestN = N;
+                earliestKind = kind;
             }
         }
 
-        /* Particle-wall collisions.
-        * The particle might hit multiple walls at once (a corner) if it's fat,
-        * so we should check all walls.*/
-        if (!a.isImmovable()) {
-            double[] times = a.timeToHitWalls();
+        /**Adds all new events for particle a to the batch.
+         * An immovable particle has nothing to predict: it never moves, and nothing ever changes
+         * its count, so the movable particles find their collisions with it themselves
+         * (among their neighbours, or in the tree of immovable particles if there's no
+         * broad phase), and their events with it never go stale.*/
+        private void predict (ParticleN a) {
+            assert a != null : "Can't predict the behavior of a null particle, now, can we?";
+            if (a.isImmovable()) {
+                return;
+            }
+            if (a.time() != t) {
+                a.moveTo(t); // predictions are relative to the particle's own time
+            }
+            earliestKind = null;
+
+            /* Particle-particle collisions.
+            * With a grid, only the particles in neighbouring cells can be hit before
+            * one of the two crosses into another cell; with neighbour lists, only the
+            * particles in a's list can be hit before one of the two lists expires.*/
+            candidateCount = 0;
+            if (lists != null) {
+                predictPairs(a, lists.of(a.id), lists.size(a.id));
+            } else {
+                if (grid == null) {
+                    for (int i = 0; i < particles.length; i++) {
+                        gather(i);
+                    }
+                } else {
+                    grid.forEachNeighbour(a.id, stencil, gatherer);
+                }
+                predictPairs(a, candidates, candidateCount);
+            }
+
+            /* Particle-wall collisions.
+            * The particle might hit multiple walls at once (a corner) if it's fat,
+            * so we should check all walls.*/
+            double wall = Double.POSITIVE_INFINITY; // time until a hits the first wall
             for (int i = 0; i < DIM; i++) {
-                double dt = times[i];
+                double dt = a.timeToHitNWall(i);
+                if (dt < Double.POSITIVE_INFINITY) {
+                    offer(t + dt, a, -1, i, Event.Kind.WALL);
+                    wall = Math.min(wall, dt);
+                }
+            }
+
+            /* Collisions with immovable particles: only the first one matters (after that,
+            * a gets predicted again), and it can't be farther than the first wall.*/
+            if (immovables != null) {
+                double limit = wall;
+                if (pq.onePerParticle() && earliestKind != null) {
+                    limit = Math.min(limit, earliestTime - t);
+                }
+                double dt = immovableQuery.timeToHit(a.id, limit);
                 if (dt < Double.POSITIVE_INFINITY) {
-                    pq.insert(new Event(t + dt, a, null, i));
+                    offer(t + dt, a, immovableQuery.hit(), -1, Event.Kind.BINARY);
                 }
             }
+
+            predictCrossing(a);
+            predictExpiry(a);
+
+            if (pq.onePerParticle() && earliestKind != null) {
+                batch.add(earliestTime, a.id, earliestB, earliestN, earliestKind);
+            }
+        }
+
+        /**Adds the collisions between a and the particles that just became its neighbours
+         * (when it crossed into a new cell in the Nth axis) to the batch.*/
+        private void predictNewNeighbours (ParticleN a, int N) {
+            candidateCount = 0;
+            grid.forEachNewNeighbour(a.id, N, stencil, gatherer);
+            predictPairs(a, candidates, candidateCount);
+        }
+
+        /**Rebuilds the neighbour list of a and adds the collisions between a and the particles
+         * that just became its neighbours to the batch.*/
+        private void predictNewListed (ParticleN a) {
+            candidateCount = 0;
+            lists.rebuild(a.id, gatherer);
+            predictPairs(a, candidates, candidateCount);
+        }
+
+        /**Adds particle i to the candidates for predictPairs
+         * (unless it's immovable and in the tree, which predict searches separately).*/
+        private void gather (int i) {
+            if (immovables != null && store.immovable[i]) {
+                return;
+            }
+            if (candidateCount == candidates.length) {
+                candidates = java.util.Arrays.copyOf(candidates, 2 * candidates.length);
+            }
+            candidates[candidateCount++] = i;
+        }
+
+        /**Offers the collisions between a (synchronized with t) and the particles in ids[0..count-1]
+         * (the gathered candidates, or a's neighbour list), and forgets the gathered candidates.
+         * They are processed in blocks by the (possibly SIMD) batched kernel.*/
+        private void predictPairs (ParticleN a, int[] ids, int count) {
+            for (int from = 0; from < count; from += BLOCK) {
+                int n = Math.min(BLOCK, count - from);
+                Couve.pairProducts(store.r, store.v, store.time, DIM, a.id, ids, from, n, dvdr, dvdv, drdr);
+                for (int k = 0; k < n; k++) {
+                    int b = ids[from + k];
+                    if (b == a.id) {
+                        continue;
+                    }
+                    double dt = ParticleN.timeToHit(dvdr[k], dvdv[k], drdr[k], a.radius + store.radius[b]);
+                    if (dt < Double.POSITIVE_INFINITY) {
+                        offer(t + dt, a, b, -1, Event.Kind.BINARY);
+                    }
+                }
+            }
+            candidateCount = 0;
+        }
+
+        /**Offers the next time particle a will leave its cell.*/
+        private void predictCrossing (ParticleN a) {
+            if (grid != null && !a.isImmovable()) {
+                double dt = grid.timeToCross(a.id, crossAxis);
+                if (dt < Double.POSITIVE_INFINITY) {
+                    offer(t + dt, a, -1, crossAxis[0], Event.Kind.CROSSING);
+                }
+            }
+        }
+
+        /**Offers the next time particle a's neighbour list will expire.*/
+        private void predictExpiry (ParticleN a) {
+            if (lists != null && !a.isImmovable()) {
+                double dt = lists.timeToExpire(a.id);
+                if (dt < Double.POSITIVE_INFINITY) {
+                    offer(t + dt, a, -1, -1, Event.Kind.EXPIRY);
+                }
+            }
+        }
+    }
+
+    /**Something that wants to hear about every collision, right after it happened.*/
+    interface Listener {
+        /**Particles a and b collided at time t (b is null and N is the axis if a hit a wall).*/
+        void collided (double t, ParticleN a, ParticleN b, int N);
+
+        /**Particles a and b, which were inside each other, were pushed apart at time t instead.*/
+        default void pushedApart (double t, ParticleN a, ParticleN b) {
         }
     }
 
+    /**Returns the number of events currently in the PQ (valid or not).*/
+    public int queueSize () {
+        return pq.size();
+    }
+
+    /**Returns the number of events processed so far (not counting invalidated ones).*/
+    public long eventCount () {
+        return eventCount;
+    }
+
+    /**Returns the current simulation time.*/
+    public double time () {
+        return t;
+    }
+
+    public ParticleStore store () {
+        return store;
+    }
+
+    public ParticleN[] particles () {
+        return particles;
+    }
+
     /**
      * Advances the simulation of the system of particles in {@code dt} units of time.
+     * Only the particles involved in an event are moved; everybody else's position
+     * is extrapolated on demand (see {@link ParticleN#position(int, double)}).
      *
      * @param dt the amount of time to advance
      */
@@ -118,20 +475,23 @@ public class CollisionSystemRN {
             Event e = pq.min();
             if (!e.isValid()) {
                 pq.delMin();
+                /*If the PQ only had this event for a, and a itself hasn't changed since,
+                * then a has no events left (its partner changed), so look for new ones.
+                * (Its partner was predicted again when it changed.)*/
+                if (pq.onePerParticle() && e.isValidFor(e.a)) {
+                    predict(e.a);
+                }
                 continue;
             }
 
-            /*Update all positions up to the time of collision.*/
+            /*Update the clock up to the time of collision.*/
             double tfinal;
             if (e.time != MINF) { // e.time == -inf indicates a getOut event
                 if (e.time > upto) {
                     tfinal = upto;
                     done = true;
                 } else {
-                    tfinal = e.time;
-                }
-                for (ParticleN part : particles) {
-                    part.move(tfinal - t);
+                    tfinal = Math.max(e.time, t); // the clock never runs backwards, even if an event is late
                 }
                 t = tfinal;
             }
@@ -142,18 +502,50 @@ public class CollisionSystemRN {
                 return;
             }
 
-            /*Starting here, the event is guaranteed to be processed.*/
+            /*Starting here, the event is guaranteed to be processed.
+            * Take it out of the PQ before the new events go in.*/
+            pq.delMin();
+            eventCount++;
             if (DUMPEVENTS) {
                 System.out.println(e);
             }
             ParticleN a = e.a;
             ParticleN b = e.b;
+            a.moveTo(t);
             if (b != null) {
+                b.moveTo(t);
+            }
+            if (e.kind == Event.Kind.CROSSING) {
+                /*Cell crossing: nothing physical happens.*/
+                cross(a, e.N);
+            } else if (e.kind == Event.Kind.EXPIRY) {
+                /*Neighbour list expiry: nothing physical happens either.*/
+                expire(a);
+            } else if (b != null) {
+                boolean bounced = true;
                 if (e.time == MINF) { /*One particle is inside the other*/
-                    a.getOut(b);
+                    if (a.getOut(b)) {
+                        bounced = false;
+                        /*They jumped, maybe into other cells (getOut synchronized them).*/
+                        if (grid != null) {
+                            grid.update(a.id);
+                            grid.update(b.id);
+                        }
+                    } else {
+                        /*They're only touching (and approaching), so they'd keep on
+                        * coming back here if they didn't bounce.*/
+                        a.bounceOff(b);
+                    }
                 } else {
                     a.bounceOff(b); /*Particle-particle collision.*/
                 }
+                if (listener != null) {
+                    if (bounced) {
+                        listener.collided(t, a, b, -1);
+                    } else {
+                        listener.pushedApart(t, a, b);
+                    }
+                }
                 /*Here we update the predicted trajectories for all involved particles.
                 * If one of the particles is immovable, we check if it's inside other particles, as well.*/
                 predict(a);
@@ -164,12 +556,12 @@ public class CollisionSystemRN {
                 if (DUMPWALLS) {
                     System.out.println(t+" "+e.N+" "+a.hashCode());
                 }
+                if (listener != null) {
+                    listener.collided(t, a, null, e.N);
+                }
                 predict(a);
             }
 
-            /*Remember to exclude the event if we've processed it.*/
-            pq.delMin();
-
             /*If the current time becomes equal to upto,
             * then we have done enough advancing.*/
             assert t <= upto : "t is greater than upto at a point of the loop where it shouldn't be.";
@@ -177,6 +569,10 @@ public class CollisionSystemRN {
                 return;
             }
         }
+
+        /*Nothing left to happen (e.g. every particle is immovable): the clock runs on anyway,
+        * and the positions of any moving particles are extrapolated on demand.*/
+        t = upto;
     }
 
 
@@ -188,13 +584,22 @@ public class CollisionSystemRN {
      *
      *    -  a and b both not null, N == -1:  binary collision between a and b
      *    -  a not null, b null, N != -1:     collision with wall in the Nth axis
+     *    -  kind == CROSSING:                a crosses into the next grid cell in the Nth axis
+     *    -  kind == EXPIRY:                  a has moved half the skin away from where its
+     *                                        neighbour list was built (N == -1)
+     *
+     *  Events are immutable, except for the one that a {@link PrimitiveEventQueue} reuses
+     *  to show its earliest event (see {@link #set}).
      */
     public static class Event implements Comparable<Event> {
-        private final double time; // time that event is scheduled to occur
-        final ParticleN a, b; // particles involved in event, possibly null
-        private final int N; // axis in which a particle-wall collision occurred
-        private final int countA, countB; // collision counts at event creation
-        private boolean knownInvalid = false;
+        /**What happens at an event.*/
+        public enum Kind { BINARY, WALL, CROSSING, EXPIRY }
+
+        double time; // time that event is scheduled to occur
+        ParticleN a, b; // particles involved in event, possibly null
+        Kind kind;
+        int N; // axis in which a particle-wall collision (or cell crossing) occurred
+        int countA, countB; // collision counts at event creation
 
 
         /**
@@ -212,13 +617,54 @@ public class CollisionSystemRN {
             if (b != null) {
                 countB = b.count();
                 this.N = -1;
+                this.kind = Kind.BINARY;
                 assert N == -1 : "N should be -1 unless particle a is colliding with a wall.";
             } else {
                 countB = -1;
                 this.N = N;
+                this.kind = Kind.WALL;
             }
         }
 
+        /**
+         * Create a new event to occur at time {@code t} in which {@code a} crosses
+         * into the next grid cell in the Nth axis.
+         * */
+        public Event (double t, ParticleN a, int N) {
+            this(t, a, N, Kind.CROSSING);
+        }
+
+        /**
+         * Create a new event to occur at time {@code t} that only involves {@code a}
+         * and isn't a collision (a CROSSING in the Nth axis, or an EXPIRY).
+         * */
+        public Event (double t, ParticleN a, int N, Kind kind) {
+            this.time = t;
+            this.a = a;
+            this.b = null;
+            this.N = N;
+            this.kind = kind;
+            assert a != null : "The particle a shouldn't be null.";
+            countA = a.count();
+            countB = -1;
+        }
+
+        /**Create a blank event, to be {@link #set} later.*/
+        Event () {
+        }
+
+        /**Overwrite this event with another one, given field by field
+         * (b is null unless kind is BINARY; the counts are the ones at its creation).*/
+        void set (double t, ParticleN a, ParticleN b, int N, Kind kind, int countA, int countB) {
+            this.time = t;
+            this.a = a;
+            this.b = b;
+            this.N = N;
+            this.kind = kind;
+            this.countA = countA;
+            this.countB = countB;
+        }
+
         /**Compare times when two events will occur.*/
         public int compareTo(Event that) {
             return Double.compare(this.time, that.time);
@@ -231,7 +677,12 @@ public class CollisionSystemRN {
             boolean validA = (a.count() == countA);
             boolean validB = (b == null || (b.count() == countB));
 
-            return !knownInvalid && validA && validB;
+            return validA && validB;
+        }
+
+        /**Has particle p (which must be a or b) not collided since the event was created?*/
+        boolean isValidFor (ParticleN p) {
+            return (p == a) ? (a.count() == countA) : (b.count() == countB);
         }
         /**String representation.*/
         @Override
@@ -239,6 +690,7 @@ public class CollisionSystemRN {
             if (b == null) { // wall collision
                 return "Event{" +
                         "time=" + time +
+                        ", kind=" + kind +
                         ", a=" + a.hashCode() +
                         ", b= null" +
                         ", N=" + N +
@@ -257,4 +709,89 @@ public class CollisionSystemRN {
             }
         }
     }
+
+    /**
+     *  A batch of predicted events, kept in parallel arrays (like the {@link ParticleStore})
+     *  rather than as {@link Event} objects, so that predicting doesn't allocate anything.
+     *  Particles are given by id; b is -1 unless the event is BINARY, and N is -1 if it is.
+     *  Queues that keep Event objects make them with {@link #events}, when the batch is inserted
+     *  (right after the prediction, so the particles' counts are still the same).
+     */
+    public static final class EventBatch {
+        private final ParticleN[] particles; // the particles, by id
+        double[] time = new double[16];
+        int[] a = new int[16], b = new int[16], N = new int[16];
+        Event.Kind[] kind = new Event.Kind[16];
+        private int size = 0;
+        private Event[] events = new Event[0]; // made by events(), until clear()
+
+        /**Initializes an empty batch for events of the particles (views of a store, by id).*/
+        EventBatch (ParticleN[] particles) {
+            this.particles = particles;
+        }
+
+        /**Returns the number of events in the batch.*/
+        public int size () {
+            return size;
+        }
+
+        /**Returns particle i.*/
+        ParticleN particle (int i) {
+            return particles[i];
+        }
+
+        /**Adds an event.*/
+        void add (double t, int a, int b, int N, Event.Kind kind) {
+            if (size == time.length) {
+                resize(2 * size);
+            }
+            this.time[size] = t;
+            this.a[size] = a;
+            this.b[size] = b;
+            this.N[size] = N;
+            this.kind[size] = kind;
+            size++;
+        }
+
+        /**Adds all the events of another batch.*/
+        void addAll (EventBatch that) {
+            if (size + that.size > time.length) {
+                resize(Math.max(2 * time.length, size + that.size));
+            }
+            System.arraycopy(that.time, 0, time, size, that.size);
+            System.arraycopy(that.a, 0, a, size, that.size);
+            System.arraycopy(that.b, 0, b, size, that.size);
+            System.arraycopy(that.N, 0, N, size, that.size);
+            System.arraycopy(that.kind, 0, kind, size, that.size);
+            size += that.size;
+        }
+
+        private void resize (int capacity) {
+            time = java.util.Arrays.copyOf(time, capacity);
+            a = java.util.Arrays.copyOf(a, capacity);
+            b = java.util.Arrays.copyOf(b, capacity);
+            N = java.util.Arrays.copyOf(N, capacity);
+            kind = java.util.Arrays.copyOf(kind, capacity);
+        }
+
+        /**Returns the events as new Event objects, in {@code events()[0..size()-1]}.*/
+        public Event[] events () {
+            if (events.length < size) {
+                events = new Event[time.length];
+            }
+            for (int k = 0; k < size; k++) {
+                ParticleN p = particles[a[k]];
+                events[k] = (kind[k] == Event.Kind.CROSSING || kind[k] == Event.Kind.EXPIRY)
+                        ? new Event(time[k], p, N[k], kind[k])
+                        : new Event(time[k], p, (b[k] < 0) ? null : particles[b[k]], N[k]);
+            }
+            return events;
+        }
+
+        /**Empties the batch.*/
+        void clear () {
+            java.util.Arrays.fill(events, 0, Math.min(size, events.length), null); // avoid loitering
+            size = 0;
+        }
+    }
 }
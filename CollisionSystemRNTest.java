@@ -0,0 +1,81 @@
+/**
+ *  Checks of {@link CollisionSystemRN} that don't need the graphics.
+ *  Run with {@code java -ea CollisionSystemRNTest}; it throws if a check fails.
+ */
+public class CollisionSystemRNTest {
+
+    /**A system whose particles are all immovable has no events at all, but its clock must still run.*/
+    static void advancesWithoutEvents () {
+        String[] queues = {"heap", "earliest", "indexed", "primitive", "calendar", "calendarearliest"};
+        for (String queue : queues) {
+            for (double skin : new double[] {0, 2}) {
+                ParticleN[] parts = new ParticleN[50];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = new ParticleN(3);
+                    parts[i].immobilize();
+                }
+                CollisionSystemRN cs = new CollisionSystemRN(parts, 3, false, false,
+                        CollisionBenchmark.makeQueue(queue, parts.length), 0, skin);
+                for (int k = 1; k <= 60; k++) {
+                    cs.advance(1.0/60);
+                }
+                check(Math.abs(cs.time() - 1) < 1e-9, queue + " queue (skin " + skin
+                        + "): time is " + cs.time() + " after advancing 1");
+                check(cs.eventCount() == 0, "immovable particles had events");
+            }
+        }
+    }
+
+    /**Pushing particles out of immovable ones (with every pair checked, in 2D) must never
+     * push them through a wall, or make the clock run backwards.*/
+    static void pushesStayInside () {
+        for (long s = 1; s <= 5; s++) {
+            final long seed = s;
+            edu.princeton.cs.algs4.StdRandom.setSeed(seed);
+            ParticleN[] parts = new ParticleN[600];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = new ParticleN(2, 1.0);
+                if (edu.princeton.cs.algs4.StdRandom.bernoulli(0.3)) {
+                    parts[i].immobilize();
+                }
+            }
+            ParticleStore store = CollisionSystemRN.storeOf(parts, 2);
+            CollisionSystemRN cs = new CollisionSystemRN(store, store.views(), false, false, new HeapEventQueue(),
+                    0, 0, 0, 0);
+            double[] last = {0};
+            cs.listener = new CollisionSystemRN.Listener() {
+                public void collided (double t, ParticleN a, ParticleN b, int N) {
+                    check(t >= last[0], "seed " + seed + ": the clock went back from " + last[0] + " to " + t);
+                    last[0] = t;
+                }
+
+                public void pushedApart (double t, ParticleN a, ParticleN b) {
+                    collided(t, a, b, -1);
+                }
+            };
+            for (int k = 1; k <= 300; k++) {
+                cs.advance(1.0/60);
+            }
+            check(Math.abs(cs.time() - 5) < 1e-9, "seed " + seed + ": time is " + cs.time() + " after advancing 5");
+            for (int i = 0; i < parts.length; i++) {
+                for (int d = 0; d < 2; d++) {
+                    double x = store.position(i, d, cs.time());
+                    check(Math.abs(x) + store.radius[i] <= ParticleN.BORDERCOORDMAX + 1e-9,
+                            "seed " + seed + ": particle " + i + " is outside the box");
+                }
+            }
+        }
+    }
+
+    private static void check (boolean ok, String message) {
+        if (!ok) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void main (String[] args) {
+        advancesWithoutEvents();
+        pushesStayInside();
+        System.out.println("All checks passed.");
+    }
+}
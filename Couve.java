@@ -1,14 +1,62 @@
+
 import java.util.Arrays;
 public class Couve {
+    /**
+     * The vector kernels. If the JDK's Vector API (module {@code jdk.incubator.vector}) is
+     * available and {@code CouveVector} was compiled, the SIMD version is used; otherwise
+     * (or with {@code -Dcouve.scalar=true}) the plain loops below are used.
+     */
+    private static final Kernels KERNELS = loadKernels();
+
+    /**Operations with a scalar and a SIMD implementation.*/
+    interface Kernels {
+        double dotProduct (double[] a, int aOff, double[] b, int bOff, int len);
+
+        void scaledIncrement (double[] a, int aOff, double s, double[] b, int bOff, int len);
+
+        void scale (double s, double[] arr, int off, int len);
+
+        /**
+         * For particle i and each particle j = cand[from..from+n-1] of the same DIM-dimensional
+         * store (positions r at times time, velocities v), computes, with j extrapolated to time[i],
+         * dr = r_j - r_i and dv = v_j - v_i, and stores dr.dv, dv.dv and dr.dr in
+         * dvdr[k], dvdv[k] and drdr[k] for k = 0..n-1.
+         */
+        void pairProducts (double[] r, double[] v, double[] time, int DIM, int i, int[] cand, int from, int n,
+                           double[] dvdr, double[] dvdv, double[] drdr);
+    }
+
+    private static Kernels loadKernels () {
+        if (!Boolean.getBoolean("couve.scalar")
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Kernels) Class.forName("CouveVector").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                ; // not compiled (or not linkable): fall back to the scalar kernels
+            }
+        }
+        return new Scalar();
+    }
+
+    /**Are the SIMD kernels in use?*/
+    public static boolean usingVectorAPI () {
+        return !(KERNELS instanceof Scalar);
+    }
+
     public static void scaledIncrement(double[] a, double s, double[] b) {
-        for (int i = 0; i < a.length; i++)
-            a[i] = a[i] + s * b[i];
+        KERNELS.scaledIncrement(a, 0, s, b, 0, a.length);
+    }
+
+    /**a[aOff..aOff+len-1] += s * b[bOff..bOff+len-1]*/
+    public static void scaledIncrement(double[] a, int aOff, double s, double[] b, int bOff, int len) {
+        KERNELS.scaledIncrement(a, aOff, s, b, bOff, len);
     }
 
     public static void main(String[] args) {
         double[] a = {0, 3, 5, -1, 7, 0, 3, 2, 1, 5, 6, 7, 0, 1, 2, 3, 5, -1, 7, 0, 3, 2, 1, 5, 6, 7, 0, 1, 2, 1};
         double[] b = {3, 0, 5, 0.95, 7, 5, 3, 2, 1, 5, 6, 7, 0, 1, 2, 3, 0, 5, 0.95, 7, 5, 3, 2, 1, 5, 6, 7, 0, 1, 2};
         double c = 3;
+        System.out.println("Vector API: " + usingVectorAPI());
         System.out.println(Arrays.toString(a));
         scaledIncrement(a, c, b);
         System.out.println("novo a:" + Arrays.toString(a));
@@ -19,12 +67,12 @@ public class Couve {
     }
 
     public static double dotProduct(double[] arr1, double[] arr2) {
-        double produtoEscalar = 0;
-
-        for (int i = 0; i < arr1.length; i++)
-            produtoEscalar += arr1[i] * arr2[i];
+        return KERNELS.dotProduct(arr1, 0, arr2, 0, arr1.length);
+    }
 
-        return produtoEscalar;
+    /**Dot product of arr1[off1..off1+len-1] and arr2[off2..off2+len-1].*/
+    public static double dotProduct(double[] arr1, int off1, double[] arr2, int off2, int len) {
+        return KERNELS.dotProduct(arr1, off1, arr2, off2, len);
     }
 
     /*public static double[] scale(double s, double[] arr) {
@@ -35,9 +83,13 @@ public class Couve {
         return ret;
     }*/
     public static void scale (double s, double[] arr) {
-        for (int i = 0; i < arr.length; i++) {
-            arr[i] = s * arr[i];
-        }
+        KERNELS.scale(s, arr, 0, arr.length);
+    }
+
+    /**Batched dot products of particle i against a block of candidates (see {@link Kernels#pairProducts}).*/
+    public static void pairProducts (double[] r, double[] v, double[] time, int DIM, int i, int[] cand, int from, int n,
+                                     double[] dvdr, double[] dvdv, double[] drdr) {
+        KERNELS.pairProducts(r, v, time, DIM, i, cand, from, n, dvdr, dvdv, drdr);
     }
 
 
@@ -45,4 +97,48 @@ public class Couve {
         for (int i = 0; i < arr.length; i++)
             System.out.println("posicao" + i + ": " + arr[i]);
     }
+
+    /**The plain loops.*/
+    private static class Scalar implements Kernels {
+        public double dotProduct (double[] a, int aOff, double[] b, int bOff, int len) {
+            double produtoEscalar = 0;
+
+            for (int i = 0; i < len; i++)
+                produtoEscalar += a[aOff + i] * b[bOff + i];
+
+            return produtoEscalar;
+        }
+
+        public void scaledIncrement (double[] a, int aOff, double s, double[] b, int bOff, int len) {
+            for (int i = 0; i < len; i++)
+                a[aOff + i] = a[aOff + i] + s * b[bOff + i];
+        }
+
+        public void scale (double s, double[] arr, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                arr[i] = s * arr[i];
+            }
+        }
+
+        public void pairProducts (double[] r, double[] v, double[] time, int DIM, int i, int[] cand, int from, int n,
+                                  double[] dvdr, double[] dvdv, double[] drdr) {
+            int oa = i * DIM;
+            for (int k = 0; k < n; k++) {
+                int j = cand[from + k];
+                int ob = j * DIM;
+                double lag = time[i] - time[j];
+                double sdvdr = 0, sdvdv = 0, sdrdr = 0;
+                for (int d = 0; d < DIM; d++) {
+                    double dr = r[ob + d] + v[ob + d] * lag - r[oa + d];
+                    double dv = v[ob + d] - v[oa + d];
+                    sdvdr += dv * dr;
+                    sdvdv += dv * dv;
+                    sdrdr += dr * dr;
+                }
+                dvdr[k] = sdvdr;
+                dvdv[k] = sdvdv;
+                drdr[k] = sdrdr;
+            }
+        }
+    }
 }
@@ -0,0 +1,99 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ *  SIMD versions of the {@link Couve} kernels, using the JDK's Vector API.
+ *  Must be compiled and run with {@code --add-modules jdk.incubator.vector};
+ *  {@link Couve} only loads this class if that module is present.
+ *  Vectors run along the coordinates, so they only pay off for a high number of dimensions;
+ *  whatever doesn't fill a whole vector is done with scalar code.
+ */
+class CouveVector implements Couve.Kernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public double dotProduct (double[] a, int aOff, double[] b, int bOff, int len) {
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        double sum = 0;
+        if (bound > 0) {
+            DoubleVector acc = DoubleVector.zero(SPECIES);
+            for (; i < bound; i += SPECIES.length()) {
+                DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+                DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+                acc = va.fma(vb, acc);
+            }
+            sum = acc.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < len; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    public void scaledIncrement (double[] a, int aOff, double s, double[] b, int bOff, int len) {
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            vb.mul(s).add(va).intoArray(a, aOff + i);
+        }
+        for (; i < len; i++) {
+            a[aOff + i] = a[aOff + i] + s * b[bOff + i];
+        }
+    }
+
+    public void scale (double s, double[] arr, int off, int len) {
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, arr, off + i).mul(s).intoArray(arr, off + i);
+        }
+        for (; i < len; i++) {
+            arr[off + i] = s * arr[off + i];
+        }
+    }
+
+    public void pairProducts (double[] r, double[] v, double[] time, int DIM, int i, int[] cand, int from, int n,
+                              double[] dvdr, double[] dvdv, double[] drdr) {
+        int bound = SPECIES.loopBound(DIM);
+        int oa = i * DIM;
+        for (int k = 0; k < n; k++) {
+            int j = cand[from + k];
+            int ob = j * DIM;
+            double lag = time[i] - time[j];
+            double sdvdr = 0, sdvdv = 0, sdrdr = 0;
+            int d = 0;
+            if (bound > 0) {
+                DoubleVector accDvdr = DoubleVector.zero(SPECIES);
+                DoubleVector accDvdv = DoubleVector.zero(SPECIES);
+                DoubleVector accDrdr = DoubleVector.zero(SPECIES);
+                for (; d < bound; d += SPECIES.length()) {
+                    DoubleVector ra = DoubleVector.fromArray(SPECIES, r, oa + d);
+                    DoubleVector va = DoubleVector.fromArray(SPECIES, v, oa + d);
+                    DoubleVector rb = DoubleVector.fromArray(SPECIES, r, ob + d);
+                    DoubleVector vb = DoubleVector.fromArray(SPECIES, v, ob + d);
+                    DoubleVector dr = rb.add(vb.mul(lag)).sub(ra);
+                    DoubleVector dv = vb.sub(va);
+                    accDvdr = dv.fma(dr, accDvdr);
+                    accDvdv = dv.fma(dv, accDvdv);
+                    accDrdr = dr.fma(dr, accDrdr);
+                }
+                sdvdr = accDvdr.reduceLanes(VectorOperators.ADD);
+                sdvdv = accDvdv.reduceLanes(VectorOperators.ADD);
+                sdrdr = accDrdr.reduceLanes(VectorOperators.ADD);
+            }
+            for (; d < DIM; d++) {
+                double dr = r[ob + d] + v[ob + d] * lag - r[oa + d];
+                double dv = v[ob + d] - v[oa + d];
+                sdvdr += dv * dr;
+                sdvdv += dv * dv;
+                sdrdr += dr * dr;
+            }
+            dvdr[k] = sdvdr;
+            dvdv[k] = sdvdv;
+            drdr[k] = sdrdr;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ *  A priority queue of {@link CollisionSystemRN.Event}s, ordered by time.
+ *  Implementations may drop events that can no longer be valid, so
+ *  {@link #size} is not necessarily the number of inserted events.
+ */
+public interface EventQueue {
+    /**Adds an event to the queue.*/
+    void insert (CollisionSystemRN.Event e);
+
+    /**
+     * Adds the events {@code events[0..n-1]}, as if inserted one by one in that order.
+     * Implementations may build their heap in bulk, which is faster than n inserts.
+     */
+    default void insertAll (CollisionSystemRN.Event[] events, int n) {
+        for (int i = 0; i < n; i++) {
+            insert(events[i]);
+        }
+    }
+
+    /**
+     * Adds the events of the batch, as if inserted one by one in order.
+     * By default, they are made into Event objects for {@link #insertAll(CollisionSystemRN.Event[], int)};
+     * queues that keep their events in primitive arrays can copy the fields instead.
+     */
+    default void insertAll (CollisionSystemRN.EventBatch batch) {
+        insertAll(batch.events(), batch.size());
+    }
+
+    /**Returns the earliest event. The queue may reuse the returned object,
+     * so it is only good until the queue is changed (other than by {@link #delMin}).*/
+    CollisionSystemRN.Event min ();
+
+    /**Removes and returns the earliest event (which is only good until the next change, too).*/
+    CollisionSystemRN.Event delMin ();
+
+    /**Is the queue empty?*/
+    boolean isEmpty ();
+
+    /**Returns the number of events in the queue.*/
+    int size ();
+
+    /**
+     * Should the collision system only insert each particle's earliest event?
+     * If so, it must predict a particle {@code a} again when its event is discarded.
+     * The queue may drop a particle's previous event when a new one is inserted for it
+     * (like {@link IndexedEventQueue}) or keep it until it is popped as invalid.
+     */
+    boolean onePerParticle ();
+}
@@ -0,0 +1,122 @@
+import java.util.NoSuchElementException;
+
+/**
+ *  An {@link EventQueue} backed by a plain binary heap (like {@code MinPQ}, but
+ *  with bulk insertion). Every inserted event stays in the heap until it reaches
+ *  the top, even if it has been invalidated in the meantime.
+ *  In earliest-only mode, the collision system only inserts the earliest event
+ *  of each particle it predicts, so the heap holds a few events per particle
+ *  (one valid, plus the invalidated ones still waiting to be popped)
+ *  instead of one for every pair that might collide.
+ */
+public class HeapEventQueue implements EventQueue {
+    private static final int BULK = 8; // batches at least this big are heapified rather than swum
+    private CollisionSystemRN.Event[] pq = new CollisionSystemRN.Event[2]; // 1-based heap
+    private int n = 0; // number of events
+    private final boolean earliestOnly;
+
+    /**Initializes an empty queue that takes every predicted event.*/
+    public HeapEventQueue () {
+        this(false);
+    }
+
+    /**
+     * Initializes an empty queue.
+     *
+     * @param earliestOnly whether to only take the earliest event of each prediction
+     */
+    public HeapEventQueue (boolean earliestOnly) {
+        this.earliestOnly = earliestOnly;
+    }
+
+    public void insert (CollisionSystemRN.Event e) {
+        if (n == pq.length - 1) resize(2 * pq.length);
+        pq[++n] = e;
+        swim(n);
+    }
+
+    /**
+     * Appends the events to the heap and restores the heap order bottom-up
+     * (Floyd's heapify, restricted to the ancestors of the new events),
+     * which takes O(k + log n * log k) time for k events instead of O(k log n).
+     */
+    @Override
+    public void insertAll (CollisionSystemRN.Event[] events, int k) {
+        if (k < BULK) {
+            EventQueue.super.insertAll(events, k);
+            return;
+        }
+        if (n + k >= pq.length) resize(Math.max(2 * pq.length, n + k + 1));
+        System.arraycopy(events, 0, pq, n + 1, k);
+        int lo = n + 1, hi = n + k; // the subtrees that may be out of order, one level at a time
+        n += k;
+        while (true) {
+            for (int i = Math.min(hi, n/2); i >= lo; i--) {
+                sink(i);
+            }
+            if (lo == 1) {
+                return;
+            }
+            hi = Math.min(hi/2, lo - 1); // the parents of the rest were just sunk
+            lo = lo/2;
+        }
+    }
+
+    public CollisionSystemRN.Event min () {
+        if (n == 0) throw new NoSuchElementException("Priority queue underflow");
+        return pq[1];
+    }
+
+    public CollisionSystemRN.Event delMin () {
+        if (n == 0) throw new NoSuchElementException("Priority queue underflow");
+        CollisionSystemRN.Event min = pq[1];
+        pq[1] = pq[n];
+        pq[n--] = null; // avoid loitering
+        sink(1);
+        if (n > 0 && n == (pq.length - 1) / 4) resize(pq.length / 2);
+        return min;
+    }
+
+    public boolean isEmpty () {
+        return n == 0;
+    }
+
+    public int size () {
+        return n;
+    }
+
+    public boolean onePerParticle () {
+        return earliestOnly;
+    }
+
+    private void resize (int capacity) {
+        pq = java.util.Arrays.copyOf(pq, capacity);
+    }
+
+    private boolean greater (int i, int j) {
+        return pq[i].compareTo(pq[j]) > 0;
+    }
+
+    private void exch (int i, int j) {
+        CollisionSystemRN.Event swap = pq[i];
+        pq[i] = pq[j];
+        pq[j] = swap;
+    }
+
+    private void swim (int k) {
+        while (k > 1 && greater(k/2, k)) {
+            exch(k, k/2);
+            k = k/2;
+        }
+    }
+
+    private void sink (int k) {
+        while (2*k <= n) {
+            int j = 2*k;
+            if (j < n && greater(j, j+1)) j++;
+            if (!greater(k, j)) break;
+            exch(k, j);
+            k = j;
+        }
+    }
+}
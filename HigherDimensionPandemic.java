@@ -1,15 +1,18 @@
 import com.jme3.app.SimpleApplication;
 import com.jme3.light.DirectionalLight;
-import com.jme3.material.Material;
 import com.jme3.math.ColorRGBA;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.instancing.InstancedNode;
 import com.jme3.scene.shape.Box;
 import com.jme3.scene.shape.Sphere;
 import com.jme3.system.AppSettings;
 import com.jme3.texture.Texture;
 import edu.princeton.cs.algs4.StdRandom;
-import edu.princeton.cs.algs4.StdDraw;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 
@@ -47,17 +50,36 @@ public class HigherDimensionPandemic extends SimpleApplication {
     public static final double baseRecoveryTime = 42;
     private static double INITIAL_INFECTED = 0.1;
     private static double PERCENTAGE_IMMOBILIZED = 0.75;
+    private static double HEADLESS_DURATION = 100; // simulated time to run for with --headless
+    private static double PRINT_INTERVAL = 1; // simulated time between S/I/R lines with --headless
+    private static double LOD_NEAR = 20; // balls closer than this to the camera get the most detailed mesh
+    private static double LOD_FAR = 50; // balls farther than this from the camera get the coarsest mesh
+    private static double TIME_STEP = 0.01; // step of the time-stepped engine (with --time-step)
+    private static double CHECKPOINT_INTERVAL = 10; // simulated time between checkpoints (with --checkpoint)
+    private static double NEIGHBOUR_SKIN = 2; // skin of the neighbour lists (with --neighbour-lists)
+    private static final Path CHECKPOINT_FILE = Paths.get("checkpoint.bin");
     public static int NUM;
     public static int DIM;
     public static int[] priDim = {0, 1, 2}; // priviliged dimensions
-    private static CollisionSystemRN cs;
+    private static CollisionEngine cs;
+    private static SimulationThread sim; // runs cs while the app is displayed
+    private static float[] shownPos; // positions of the beings being displayed (3 per being)
+    private static int[] shownTags; // statuses of the beings being displayed
     private int BEINGCOUNT = 0;
+    private static final int INSTANCING_THRESHOLD = 1000; // use instancing by default from this many beings on
+    private static boolean instancing;
+    private Node balls; // parent of the beings' Geometries (an InstancedNode when instancing)
+    private Sphere[] lodMeshes; // unit spheres shared by all beings, from most to least detailed
+    private MaterialCache materials; // all materials, shared by color and texture
     private static Being[] beings;
     private static TreeSet<String> options = new TreeSet<>();
     private static int[] dimpnum = new int[2];
+    /*Counted on the simulation thread (the renderer counts the statuses in its snapshot instead).*/
     private static int infectedBeings = 0;
     private static int susceptibleBeings = 0;
     private static int recoveredBeings = 0;
+    private static Checkpoint.Writer checkpointer; // only with --checkpoint
+    private static double nextCheckpoint; // simulation time of the next checkpoint
     private static String[] codes = {
             "chart",
             "dumpwalls",
@@ -66,11 +88,27 @@ public class HigherDimensionPandemic extends SimpleApplication {
             "texturedballs",
             "socialdistancing",
             "fullscreen",
+            "indexedqueue",
+            "primitivequeue",
+            "calendarqueue",
+            "earliestonly",
+            "dumpqueue",
+            "headless",
+            "printinterval",
+            "lodnear",
+            "lodfar",
+            "interpolate",
+            "instancing",
+            "noinstancing",
+            "dumpmaterials",
+            "timestep",
+            "checkpoint",
+            "restore",
+            "neighbourlists",
     };
     private static TreeMap<String, Boolean> boolStrings = new TreeMap<>();
-    private static Material spaceMat; // to avoid uninitialized variable error
     private static Texture lagoonTex;
-    float time = 0;
+    private SIRChart chart; // only with --chart
 
     /**Implement extra methods to simulate a pandemic.*/
     private static class PartN extends ParticleN {
@@ -92,6 +130,19 @@ public class HigherDimensionPandemic extends SimpleApplication {
             }
         }
 
+        /**Restore being i of a checkpoint.*/
+        public PartN (Checkpoint c, int i) {
+            super(c.position(i), c.velocity(i), c.radius[i], c.mass[i], c.color(i));
+            if (c.immovable[i]) {
+                immobilize();
+            }
+            status = (char) c.status[i];
+            timer = c.timer[i];
+            if (status == 'S') susceptibleBeings++;
+            else if (status == 'R') recoveredBeings++;
+            else infectedBeings++;
+        }
+
         /**Infect this particle.*/
         private void infect () {
             if (this.status == 'R') recoveredBeings--;
@@ -104,6 +155,22 @@ public class HigherDimensionPandemic extends SimpleApplication {
         }
 
 
+        /**Advance this particle's infection by dt units of time.*/
+        private void updateInfection (double dt) {
+            if (status == 'I') { // infected
+                timer -= dt;
+                if (timer < 0) {
+                    status = 'R';
+                    setColor(ParticleN.BLUE);
+                    infectedBeings--;
+                    recoveredBeings++;
+                }
+            } else if (status == 'U') { // updateColor
+                status = 'I';
+                timer -= dt;
+            }
+        }
+
         /**If one of the particles is infected, the other one becomes infected as well.*/
         @Override
         public void handleBinaryCollision (ParticleN that) {
@@ -138,7 +205,7 @@ public class HigherDimensionPandemic extends SimpleApplication {
                 "Extra options: \n" +
                 "   --help                            Print this information.\n" +
                 "   --fullscreen                      Display in fullscreen.\n" +
-                "   --chart                           Draw a chart using StdDraw.\n" +
+                "   --chart                           Draw a live S/I/R chart.\n" +
                 "   --space                           Use a space texture for the cube.\n" +
                 "   --textured-balls                  Use a lagoon texture for"+
                 " the balls.\n" +
@@ -147,7 +214,47 @@ public class HigherDimensionPandemic extends SimpleApplication {
                 "   --dump-walls                      Dump wall collision"+ 
                 " information to stdout.\n" +
                 "   --dump-events                     Dump PQ event information"+
-                "to stdout.\n";
+                "to stdout.\n" +
+                "   --indexed-queue                   Keep only one event per particle"+
+                " in the PQ.\n" +
+                "   --primitive-queue                 Like --indexed-queue, but keep the"+
+                " events in primitive arrays.\n" +
+                "   --calendar-queue                  Use a calendar queue instead of a"+
+                " binary heap for the PQ.\n" +
+                "   --earliest-only                   Only put each particle's earliest"+
+                " event in the PQ.\n" +
+                "   --dump-queue                      Dump the PQ size to stdout"+
+                " every frame.\n" +
+                "   --headless [DOUBLE]               Don't display anything; run for"+
+                " this much simulated time\n" +
+                "                                     and print S/I/R counts to stdout.\n" +
+                "   --print-interval [DOUBLE]         Simulated time between S/I/R"+
+                " lines with --headless.\n" +
+                "   --interpolate                     Interpolate positions between"+
+                " simulation steps.\n" +
+                "   --instancing                      Draw all balls of a color with one"+
+                " draw call\n" +
+                "                                     (default from "+INSTANCING_THRESHOLD+" particles on).\n" +
+                "   --no-instancing                   Draw every ball separately.\n" +
+                "   --dump-materials                  Dump material cache statistics"+
+                " to stdout on exit.\n" +
+                "   --lod-near [DOUBLE]               Camera distance up to which balls"+
+                " are drawn in full detail.\n" +
+                "   --lod-far [DOUBLE]                Camera distance from which balls"+
+                " are drawn in the least detail.\n" +
+                "   --time-step [DOUBLE]              Move everybody in fixed steps of this"+
+                " size and look for\n" +
+                "                                     overlaps, instead of predicting"+
+                " collisions.\n" +
+                "   --checkpoint [DOUBLE]             Save the whole simulation to "+CHECKPOINT_FILE+
+                " every\n" +
+                "                                     this much simulated time, and on exit.\n" +
+                "   --restore                         Resume the simulation saved in "+CHECKPOINT_FILE+
+                "\n" +
+                "                                     (DIM and PNUM are then taken from it).\n" +
+                "   --neighbour-lists [DOUBLE]        Check each particle against a list of the particles"+
+                " within this\n" +
+                "                                     distance of touching it, instead of a grid of cells.\n";
 
         if (exitCode == 0) {
             System.out.println(usage);
@@ -187,49 +294,51 @@ public class HigherDimensionPandemic extends SimpleApplication {
     /**Parse command-line arguments.*/
     private static void parse (String[] args, boolean verboseParse) {
         int dimpnumfilled = 0;
-        boolean expectingNumber = false;
+        String expecting = null; // option whose (optional) parameter may come next
         for (int i = 0; i < args.length; i++) {
             String parsed = args[i].replaceAll("[^a-z0-9.]", "").toLowerCase();
 
-            if (expectingNumber) { /*Next token is a parameter to --social-distancing.*/
+            if (expecting != null) { /*Next token may be a parameter to the previous option.*/
+                double d;
                 try {
-                    double d = Double.parseDouble(parsed);
-                    if (d < 0 || 1 < d) {
-                        throw new IllegalArgumentException("");
-                    }
-                    INITIAL_INFECTED = d;
-                    expectingNumber = false;
-                } catch(Exception e) {
-                    System.err.println("Parameter to --social-distancing must be a valid double from 0.0 to 1.0\n");
-                    printUsage(1);
+                    d = Double.parseDouble(parsed);
+                } catch (NumberFormatException e) {
+                    d = Double.NaN;
                 }
-            } else {
-                /*Try to parse as a main argument.*/
-                try {
-                    int p = Integer.parseInt(parsed);
-                    dimpnum[dimpnumfilled] = p;
-                    dimpnumfilled++;
+                if (!Double.isNaN(d)) {
+                    setParameter(expecting, d);
+                    expecting = null;
                     continue;
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    System.err.println("Too many main arguments.\n");
-                    printUsage(1);
-                } catch (Exception ignored) {
-                    ;
                 }
+                System.out.println("Assuming default value for --"+expecting+".");
+                expecting = null;
+            }
+            /*Try to parse as a main argument.*/
+            try {
+                int p = Integer.parseInt(parsed);
+                dimpnum[dimpnumfilled] = p;
+                dimpnumfilled++;
+                continue;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                System.err.println("Too many main arguments.\n");
+                printUsage(1);
+            } catch (Exception ignored) {
+                ;
+            }
 
-                if (parsed.equals("socialdistancing")) {
-                    options.add("socialdistancing");
-                    expectingNumber = true;
-                } else {
-                    options.add(parsed);
-                }
+            options.add(parsed);
+            if (parsed.equals("socialdistancing") || parsed.equals("headless")
+                    || parsed.equals("printinterval") || parsed.equals("lodnear")
+                    || parsed.equals("lodfar") || parsed.equals("timestep")
+                    || parsed.equals("checkpoint") || parsed.equals("neighbourlists")) {
+                expecting = parsed;
             }
         }
         if (options.contains("help")) { /*Print help if it seems like help is requested.*/
             printUsage(0);
         }
-        if (expectingNumber) {
-            System.out.println("Assuming default value of "+PERCENTAGE_IMMOBILIZED+" for --social-distancing.");
+        if (expecting != null) {
+            System.out.println("Assuming default value for --"+expecting+".");
         }
         if (dimpnumfilled != 2) {
             System.err.println("Not enough main arguments provided.\n");
@@ -256,6 +365,37 @@ public class HigherDimensionPandemic extends SimpleApplication {
         }
     }
 
+    /**Set the parameter of option s to d, or exit if d is out of range.*/
+    private static void setParameter (String s, double d) {
+        if (s.equals("socialdistancing")) {
+            if (d < 0 || 1 < d) {
+                System.err.println("Parameter to --social-distancing must be a valid double from 0.0 to 1.0\n");
+                printUsage(1);
+            }
+            PERCENTAGE_IMMOBILIZED = d;
+        } else {
+            if (!(d > 0)) {
+                System.err.println("Parameter to --"+s+" must be a positive double\n");
+                printUsage(1);
+            }
+            if (s.equals("headless")) {
+                HEADLESS_DURATION = d;
+            } else if (s.equals("printinterval")) {
+                PRINT_INTERVAL = d;
+            } else if (s.equals("lodnear")) {
+                LOD_NEAR = d;
+            } else if (s.equals("timestep")) {
+                TIME_STEP = d;
+            } else if (s.equals("checkpoint")) {
+                CHECKPOINT_INTERVAL = d;
+            } else if (s.equals("neighbourlists")) {
+                NEIGHBOUR_SKIN = d;
+            } else {
+                LOD_FAR = d;
+            }
+        }
+    }
+
     /**Access the boolean variable corresponding to String s.*/
     private static boolean AC (String s) {
         return boolStrings.get(s.toLowerCase());
@@ -268,6 +408,20 @@ public class HigherDimensionPandemic extends SimpleApplication {
         }
 
         parse(args, false);
+        Checkpoint saved = null;
+        if (AC("restore")) {
+            try {
+                saved = Checkpoint.read(CHECKPOINT_FILE);
+            } catch (IOException e) {
+                System.err.println("Couldn't restore the simulation: "+e.getMessage());
+                System.exit(1);
+            }
+            if (saved.DIM != DIM || saved.size != NUM) {
+                System.out.println("Restoring "+saved.size+" beings in "+saved.DIM+" dimensions.");
+            }
+            DIM = saved.DIM;
+            NUM = saved.size;
+        }
 
         /*Scientifically determine the correct dimensions to analyze.*/
         pick3Dimensions();
@@ -280,9 +434,32 @@ public class HigherDimensionPandemic extends SimpleApplication {
         /*Create higher physics.*/
         PartN[] parts = new PartN[NUM];
         for (int i = 0; i < parts.length; i++) {
-            parts[i] = new PartN(DIM);
+            parts[i] = (saved == null) ? new PartN(DIM) : new PartN(saved, i);
+        }
+        double t0 = 0;
+        if (saved != null) { /*Carry on where the checkpoint left off.*/
+            t0 = saved.time;
+            StdRandom.setSeed(saved.seed);
+        }
+        if (AC("timestep")) {
+            cs = new TimeSteppedCollisionSystem(parts, DIM, TIME_STEP, t0);
+        } else { /*The event queue is predicted from scratch.*/
+            EventQueue pq = AC("indexedqueue") ? new IndexedEventQueue(NUM)
+                    : AC("primitivequeue") ? new PrimitiveEventQueue(NUM)
+                    : AC("calendarqueue") ? new CalendarEventQueue(AC("earliestonly"))
+                    : new HeapEventQueue(AC("earliestonly"));
+            cs = new CollisionSystemRN(parts, DIM, AC("dumpwalls"), AC("dumpevents"), pq, t0,
+                    AC("neighbourlists") ? NEIGHBOUR_SKIN : 0);
+        }
+        if (AC("checkpoint")) {
+            checkpointer = new Checkpoint.Writer(CHECKPOINT_FILE);
+            nextCheckpoint = t0 + CHECKPOINT_INTERVAL;
+        }
+
+        if (AC("headless")) {
+            runHeadless();
+            return;
         }
-        cs = new CollisionSystemRN(parts, DIM, AC("dumpwalls"), AC("dumpevents"));
 
         /*Initiate application.*/
         HigherDimensionPandemic app = new HigherDimensionPandemic();
@@ -304,8 +481,11 @@ public class HigherDimensionPandemic extends SimpleApplication {
     /**Initialization phase.*/
     @Override
     public void simpleInitApp () {
+        materials = new MaterialCache(assetManager);
         if (AC("chart")) {
-            StdDraw.setCanvasSize(800, 100);
+            chart = new SIRChart(materials, 800, 100, 0.1);
+            chart.geometry().setLocalTranslation(10, 10, 0);
+            guiNode.attachChild(chart.geometry());
         }
         flyCam.setMoveSpeed(8f); // Make the camera more bearable.
 
@@ -324,29 +504,141 @@ public class HigherDimensionPandemic extends SimpleApplication {
         /*Put up walls N-dimensionally. (Actually, they're just for show)*/
         makewalls();
 
+        /*Run the physics on its own thread; we only get to see snapshots of it.*/
+        sim = new SimulationThread(cs, priDim, HigherDimensionPandemic::afterStep, i -> {
+            char c = ((PartN) cs.particles()[i]).getStatus();
+            return (c == 'U') ? 'I' : c; // the color has already changed
+        });
+        shownPos = new float[3 * NUM];
+        shownTags = new int[NUM];
+        sim.read(false, shownPos, shownTags);
+
         /*Manifest the physical forms of our beings.*/
+        instancing = AC("instancing") || (NUM >= INSTANCING_THRESHOLD && !AC("noinstancing"));
+        lodMeshes = new Sphere[] { // First 2 arguments control the quality of the sphere.
+                new Sphere(30, 30, 1),
+                new Sphere(8, 8, 1),
+                new Sphere(4, 6, 1),
+        };
+        if (instancing) {
+            balls = new InstancedNode("balls");
+        } else {
+            balls = new Node("balls");
+        }
+        rootNode.attachChild(balls);
         beings = new Being[NUM];
         for (int i = 0; i < beings.length; i++) {
-            beings[i] = new Being((PartN)cs.particles[i]);
+            beings[i] = new Being((PartN)cs.particles()[i], i);
+        }
+        if (instancing) {
+            ((InstancedNode) balls).instance();
         }
+        sim.start();
+    }
+
+    /**Cleanup phase.*/
+    @Override
+    public void destroy () {
+        sim.shutdown();
+        finishCheckpoints();
+        if (AC("dumpmaterials")) {
+            System.out.println(materials);
+        }
+        super.destroy();
     }
 
     /**Main event loop.
      * @param tpf time per frame*/
     @Override
     public void simpleUpdate (float tpf) {
-        /*Advance the simulation and update the positions of all beings.*/
-        cs.advance(tpf);
-        time += 0.0002;
+        /*Get the latest state of the simulation and update all beings.*/
+        double shownTime = sim.read(AC("interpolate"), shownPos, shownTags);
+        Vector3f eye = cam.getLocation();
         for (Being b : beings) {
             b.updatePos(); // update position
-            b.updateInfection(tpf);
+            b.updateInfection();
+            b.updateLod(eye);
         }
         if (AC("chart")) {
-            updateChart(time); // update the chart
+            int susceptible = 0, infected = 0, recovered = 0;
+            for (int tag : shownTags) {
+                if (tag == 'S') susceptible++;
+                else if (tag == 'R') recovered++;
+                else infected++;
+            }
+            chart.sample(shownTime, susceptible, infected, recovered);
+            chart.update();
+        }
+    }
+
+    /**Bookkeeping after every step of the simulation (on the simulation thread).*/
+    private static void afterStep (double dt) {
+        if (AC("dumpqueue") && cs instanceof CollisionSystemRN) {
+            System.out.println(cs.time()+" "+((CollisionSystemRN) cs).queueSize());
+        }
+        for (ParticleN p : cs.particles()) {
+            ((PartN) p).updateInfection(dt);
+        }
+        /*If the last checkpoint is still being written, skip this one rather than wait.*/
+        if (checkpointer != null && cs.time() >= nextCheckpoint && !checkpointer.isBusy()) {
+            checkpointer.submit(capture());
+            while (nextCheckpoint <= cs.time()) {
+                nextCheckpoint += CHECKPOINT_INTERVAL;
+            }
         }
     }
 
+    /**Take a snapshot of the whole simulation. StdRandom is restarted with a new seed,
+     * which goes into the snapshot, so that a restored run draws the same numbers.*/
+    private static Checkpoint capture () {
+        long seed = ((long) StdRandom.uniform(Integer.MAX_VALUE) << 31) ^ StdRandom.uniform(Integer.MAX_VALUE);
+        StdRandom.setSeed(seed);
+        Checkpoint c = Checkpoint.capture(cs, seed);
+        ParticleN[] ps = cs.particles();
+        for (int i = 0; i < ps.length; i++) {
+            c.status[i] = (byte) ((PartN) ps[i]).status;
+            c.timer[i] = ((PartN) ps[i]).timer;
+        }
+        return c;
+    }
+
+    /**Wait for the checkpoint being written (if any), and save the final state
+     * (the simulation must have stopped).*/
+    private static void finishCheckpoints () {
+        if (checkpointer == null) {
+            return;
+        }
+        checkpointer.shutdown();
+        try {
+            capture().write(CHECKPOINT_FILE);
+        } catch (IOException e) {
+            System.err.println("Couldn't write checkpoint: "+e.getMessage());
+        }
+    }
+
+    /**Run the simulation without graphics for HEADLESS_DURATION units of simulated time,
+     * in steps of SimulationThread.STEP, printing the S/I/R counts every PRINT_INTERVAL.*/
+    private static void runHeadless () {
+        long steps = (long) Math.ceil(HEADLESS_DURATION / SimulationThread.STEP);
+        long stepsPerPrint = Math.max(1, Math.round(PRINT_INTERVAL / SimulationThread.STEP));
+        System.out.println("time S I R");
+        printSIR();
+        for (long s = 1; s <= steps; s++) {
+            cs.advance(SimulationThread.STEP);
+            afterStep(SimulationThread.STEP);
+            if (s % stepsPerPrint == 0 || s == steps) {
+                printSIR();
+            }
+        }
+        finishCheckpoints();
+    }
+
+    /**Print the simulation time and the number of susceptible, infected and recovered beings.*/
+    private static void printSIR () {
+        System.out.println(String.format(Locale.ROOT, "%.3f %d %d %d",
+                cs.time(), susceptibleBeings, infectedBeings, recoveredBeings));
+    }
+
     /**Arbitrarily pick 3 dimensions to display.*/
     private static void pick3Dimensions () {
         int cnt = 0;
@@ -384,24 +676,18 @@ public class HigherDimensionPandemic extends SimpleApplication {
         Box mesh = new Box(halfWallDistance, 2, halfWallDistance);
         // Starry background
 
+        Texture space = null;
         if (AC("space")) {
-            spaceMat = new Material(assetManager,
-                "Common/MatDefs/Misc/Unshaded.j3md"); //default material
-            Texture space = assetManager.loadTexture("assets/Pictures/Cosmic Winter Wonderland.jpg");
-            spaceMat.setTexture("ColorMap", space);
+            space = assetManager.loadTexture("assets/Pictures/Cosmic Winter Wonderland.jpg");
         }
 
         for (int i = 0; i < 6; i++) {
-            // Randomly-colored opaque walls
-            Material mat = new Material(assetManager,
-                    "Common/MatDefs/Misc/Unshaded.j3md"); //default material
-            mat.setColor("Color", ColorRGBA.randomColor());
-
             Geometry g = new Geometry("wall" + i, mesh);
             if (AC("space")) {
-                g.setMaterial(spaceMat);
+                g.setMaterial(materials.get(null, space, false));
             } else {
-                g.setMaterial(mat);
+                // Randomly-colored opaque walls
+                g.setMaterial(materials.get(ColorRGBA.randomColor(), null, false));
             }
             g.setLocalTranslation(positions[i]);
 
@@ -416,83 +702,60 @@ public class HigherDimensionPandemic extends SimpleApplication {
     /**Class that integrates Particles into jME's logic.*/
     private class Being {
         private final PartN p;
+        private final int index; // index of p in shownPos and shownTags
         private final Geometry g;
+        private int tag; // status of p when its material was last made
+        private int lod = 0; // index of the current Mesh in lodMeshes
 
         /**Create a Mesh and a Material according to the properties of p,
-         * make a Geometry out of them and attach the Geometry to the rootNode.*/
-        private Being (PartN p) {
-            Sphere mesh = new Sphere(30, 30, (float) p.radius); // First 2 arguments control the quality of the sphere.
+         * make a Geometry out of them and attach the Geometry to the balls node.
+         * The Mesh is a shared unit sphere scaled to p's radius.*/
+        private Being (PartN p, int index) {
             String geometryName = "ball"+BEINGCOUNT;
             BEINGCOUNT++;
 
-            Geometry g = new Geometry(geometryName, mesh);
+            Geometry g = new Geometry(geometryName, lodMeshes[lod]);
+            g.setLocalScale((float) p.radius);
 
             this.p = p;
+            this.index = index;
             this.g = g;
+            this.tag = shownTags[index];
             updatePos(); // set initial coordinates
-            updateColor(); // create material with p.color()
-            rootNode.attachChild(g); //add the Being to the scene
+            updateColor(); // create material for the shown status
+            balls.attachChild(g); //add the Being to the scene
         }
 
-        /**Update the Geometry's position based on the particle's position in the priviliged dimensions.*/
+        /**Update the Geometry's position based on the particle's (shown) position in the priviliged dimensions.*/
         private void updatePos () {
-            g.setLocalTranslation(
-                    (float) p.position(priDim[0]),
-                    (float) p.position(priDim[1]),
-                    (float) p.position(priDim[2]));
+            g.setLocalTranslation(shownPos[3*index], shownPos[3*index + 1], shownPos[3*index + 2]);
         }
 
-        /**Update the Geometry's material's color based on the color data in the particle.*/
+        /**Update the Geometry's material's color based on the shown status (not on the particle,
+         * which the simulation thread may have changed since the snapshot).
+         * Beings of the same color share a material (and so, when instancing, a draw call).*/
         private void updateColor () {
-            Material mat = new Material(assetManager,
-                    "Common/MatDefs/Misc/Unshaded.j3md"); //default material
-            float[] col = p.color();
-            mat.setColor("Color", new ColorRGBA(col[0], col[1], col[2], col[3]));
-            if (AC("texturedballs")) {
-                mat.setTexture("ColorMap", lagoonTex);
+            float[] col = (tag == 'S') ? ParticleN.GREEN : (tag == 'R') ? ParticleN.BLUE : ParticleN.RED;
+            ColorRGBA color = new ColorRGBA(col[0], col[1], col[2], col[3]);
+            g.setMaterial(materials.get(color, AC("texturedballs") ? lagoonTex : null, instancing));
+        }
+
+        /**Switch to a more or less detailed Mesh depending on the distance to the camera at eye.*/
+        private void updateLod (Vector3f eye) {
+            float d = g.getLocalTranslation().distance(eye);
+            int level = (d < LOD_NEAR) ? 0 : (d < LOD_FAR) ? 1 : 2;
+            if (level != lod) {
+                lod = level;
+                g.setMesh(lodMeshes[lod]);
             }
-            g.setMaterial(mat);
         }
 
-        private void updateInfection (double tpf) {
-            char c = p.status;
-            if (c == 'I') { // infected
-                p.timer -= tpf;
-                if (p.timer < 0) {
-                    p.status = 'R';
-                    p.setColor(ParticleN.BLUE);
-                    infectedBeings--;
-                    recoveredBeings++;
-                    updateColor();
-                }
-            } else if (c == 'U') { // updateColor
+        /**Remake the material if the particle's status changed.*/
+        private void updateInfection () {
+            if (shownTags[index] != tag) {
+                tag = shownTags[index];
                 updateColor();
-                p.status = 'I';
-                p.timer -= tpf;
             }
         }
     }
-
-    /**Class that makes a live chart using StdDraw. The problem is it will impact the FPS
-        It will update every tick and move 0.0002 in the board.
-    **/
-    private static void updateChart (float x) {
-
-        double x0 = 0;
-        double y0 = 0;
-        double y1 = (double)infectedBeings/(double)beings.length;
-        StdDraw.setPenColor(StdDraw.RED);
-        StdDraw.line(x, y0, x, y1);
-
-        y0 = y1;
-        y1 = y0+(double)susceptibleBeings/(double)beings.length;
-        StdDraw.setPenColor(StdDraw.GREEN);
-        StdDraw.line(x, y0, x, y1);
-
-        y0 = y1;
-        y1 = y0 + (double)recoveredBeings/(double)beings.length;
-        StdDraw.setPenColor(StdDraw.BLUE);
-        StdDraw.line(x, y0, x, y1);
-        /**Could probably make it a lot cleaned.*/
-    }
 }
@@ -0,0 +1,127 @@
+import java.util.NoSuchElementException;
+
+/**
+ *  An {@link EventQueue} that keeps a single event per particle, in an indexed
+ *  binary heap keyed by the id of the event's particle {@code a}
+ *  (as in Lubachevsky's and Rapaport's event-driven schemes).
+ *  Inserting an event for a particle replaces that particle's previous event,
+ *  so the heap never holds more events than there are particles.
+ */
+public class IndexedEventQueue implements EventQueue {
+    private final int[] pq; // binary heap of particle ids, 1-based
+    private final int[] qp; // position of each particle id in pq, or -1
+    private final CollisionSystemRN.Event[] events; // the event of each particle id
+    private int n = 0; // number of events
+
+    /**
+     * Initializes an empty queue for particles with ids from 0 to {@code maxN-1}.
+     *
+     * @param maxN the number of particles
+     */
+    public IndexedEventQueue (int maxN) {
+        pq = new int[maxN + 1];
+        qp = new int[maxN];
+        events = new CollisionSystemRN.Event[maxN];
+        java.util.Arrays.fill(qp, -1);
+    }
+
+    /**Sets the event of particle {@code e.a}, replacing its previous one.*/
+    public void insert (CollisionSystemRN.Event e) {
+        int i = e.a.id;
+        if (qp[i] == -1) {
+            n++;
+            qp[i] = n;
+            pq[n] = i;
+            events[i] = e;
+            swim(n);
+        } else {
+            CollisionSystemRN.Event old = events[i];
+            events[i] = e;
+            if (e.compareTo(old) < 0) {
+                swim(qp[i]);
+            } else {
+                sink(qp[i]);
+            }
+        }
+    }
+
+    /**If the queue is empty, places the events and heapifies them bottom-up (linear time);
+     * otherwise inserts them.*/
+    @Override
+    public void insertAll (CollisionSystemRN.Event[] events, int n) {
+        if (this.n > 0) {
+            EventQueue.super.insertAll(events, n);
+            return;
+        }
+        for (int k = 0; k < n; k++) {
+            CollisionSystemRN.Event e = events[k];
+            int i = e.a.id;
+            if (qp[i] == -1) {
+                this.n++;
+                qp[i] = this.n;
+                pq[this.n] = i;
+            }
+            this.events[i] = e; // a later event replaces an earlier one
+        }
+        for (int k = this.n/2; k >= 1; k--) {
+            sink(k);
+        }
+    }
+
+    public CollisionSystemRN.Event min () {
+        if (n == 0) throw new NoSuchElementException("Priority queue underflow");
+        return events[pq[1]];
+    }
+
+    public CollisionSystemRN.Event delMin () {
+        if (n == 0) throw new NoSuchElementException("Priority queue underflow");
+        int i = pq[1];
+        CollisionSystemRN.Event min = events[i];
+        exch(1, n--);
+        sink(1);
+        qp[i] = -1;
+        events[i] = null;
+        return min;
+    }
+
+    public boolean isEmpty () {
+        return n == 0;
+    }
+
+    public int size () {
+        return n;
+    }
+
+    public boolean onePerParticle () {
+        return true;
+    }
+
+    private boolean greater (int i, int j) {
+        return events[pq[i]].compareTo(events[pq[j]]) > 0;
+    }
+
+    private void exch (int i, int j) {
+        int swap = pq[i];
+        pq[i] = pq[j];
+        pq[j] = swap;
+        qp[pq[i]] = i;
+        qp[pq[j]] = j;
+    }
+
+    private void swim (int k) {
+        while (k > 1 && greater(k/2, k)) {
+            exch(k, k/2);
+            k = k/2;
+        }
+    }
+
+    private void sink (int k) {
+        while (2*k <= n) {
+            int j = 2*k;
+            if (j < n && greater(j, j+1)) j++;
+            if (!greater(k, j)) break;
+            exch(k, j);
+            k = j;
+        }
+    }
+}
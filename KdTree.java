@@ -0,0 +1,216 @@
+/**
+ *  A static k-d tree over some of the particles of a {@link ParticleStore}, meant for the
+ *  immovable ones: it is built once, and its particles must never move afterwards.
+ *  Every node keeps the bounding box of its particles' balls, so the tree can be searched
+ *  for the first ball that a moving particle will hit, in about logarithmic time, by only
+ *  visiting the nodes that its path (thickened by its radius) goes through, nearest first.
+ *  The leaves are checked with the same batched kernel as the collision system's candidates.
+ */
+public class KdTree {
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+    static final int LEAF = 8; // most particles per leaf
+
+    public final int DIM;
+    private final ParticleStore store;
+    private final int[] ids; // the particles, grouped by node
+    /*The nodes, in preorder: bounding box of the balls, range of ids, and children (-1 for a leaf).*/
+    private final double[] lo, hi;
+    private final int[] from, to, left, right;
+    private int nodes = 0;
+
+    /**
+     * Builds a tree over the given particles of the store.
+     *
+     * @param store the particles
+     * @param ids the indices of the particles to put in the tree (copied)
+     * @param count how many of them there are
+     */
+    public KdTree (ParticleStore store, int[] ids, int count) {
+        this.DIM = store.DIM;
+        this.store = store;
+        this.ids = java.util.Arrays.copyOf(ids, count);
+        int max = Math.max(1, 4 * ((count + LEAF - 1) / LEAF)); // leaves of a median split hold LEAF/2 or more
+        lo = new double[max * DIM];
+        hi = new double[max * DIM];
+        from = new int[max];
+        to = new int[max];
+        left = new int[max];
+        right = new int[max];
+        if (count > 0) {
+            build(0, count);
+        }
+    }
+
+    /**
+     * Returns a tree over the immovable particles of the store,
+     * or {@code null} if none of them is immovable.
+     */
+    public static KdTree ofImmovables (ParticleStore store) {
+        int[] ids = new int[store.size];
+        int count = 0;
+        for (int i = 0; i < store.size; i++) {
+            if (store.immovable[i]) {
+                ids[count++] = i;
+            }
+        }
+        return (count == 0) ? null : new KdTree(store, ids, count);
+    }
+
+    /**Returns the number of particles in the tree.*/
+    public int size () {
+        return ids.length;
+    }
+
+    /**Builds the subtree of ids[f..t-1] and returns its node.*/
+    private int build (int f, int t) {
+        int node = nodes++;
+        from[node] = f;
+        to[node] = t;
+        int o = node * DIM;
+        java.util.Arrays.fill(lo, o, o + DIM, INFINITY);
+        java.util.Arrays.fill(hi, o, o + DIM, -INFINITY);
+        for (int k = f; k < t; k++) {
+            int i = ids[k];
+            for (int d = 0; d < DIM; d++) {
+                double x = store.r[i*DIM + d];
+                lo[o + d] = Math.min(lo[o + d], x - store.radius[i]);
+                hi[o + d] = Math.max(hi[o + d], x + store.radius[i]);
+            }
+        }
+        if (t - f <= LEAF) {
+            left[node] = right[node] = -1;
+            return node;
+        }
+
+        /*Split at the median of the widest axis.*/
+        int axis = 0;
+        for (int d = 1; d < DIM; d++) {
+            if (hi[o + d] - lo[o + d] > hi[o + axis] - lo[o + axis]) {
+                axis = d;
+            }
+        }
+        int mid = (f + t) >>> 1;
+        select(f, t - 1, mid, axis);
+        left[node] = build(f, mid);
+        right[node] = build(mid, t);
+        return node;
+    }
+
+    /**Rearranges ids[l..r] so that ids[k] has the particle with the k-th coordinate
+     * in the given axis, with smaller ones before it and larger ones after it (quickselect).*/
+    private void select (int l, int r, int k, int axis) {
+        while (l < r) {
+            double pivot = store.r[ids[(l + r) >>> 1]*DIM + axis];
+            int i = l, j = r;
+            while (i <= j) {
+                while (store.r[ids[i]*DIM + axis] < pivot) i++;
+                while (store.r[ids[j]*DIM + axis] > pivot) j--;
+                if (i <= j) {
+                    int swap = ids[i];
+                    ids[i++] = ids[j];
+                    ids[j--] = swap;
+                }
+            }
+            if (k <= j) {
+                r = j;
+            } else if (k >= i) {
+                l = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**Returns when (from now on) particle a's ball enters the box of a node, if before
+     * time limit, or {@code Double.POSITIVE_INFINITY} otherwise (0 if it's already inside).*/
+    private double entry (int node, int a, double limit) {
+        int o = node * DIM, oa = a * DIM;
+        double ra = store.radius[a];
+        double enter = 0, exit = limit;
+        for (int d = 0; d < DIM; d++) {
+            double x = store.r[oa + d], v = store.v[oa + d];
+            double l = lo[o + d] - ra, h = hi[o + d] + ra;
+            if (v == 0) {
+                if (x < l || x > h) {
+                    return INFINITY;
+                }
+                continue;
+            }
+            double t1 = (l - x) / v, t2 = (h - x) / v;
+            if (t1 > t2) {
+                double swap = t1;
+                t1 = t2;
+                t2 = swap;
+            }
+            enter = Math.max(enter, t1);
+            exit = Math.min(exit, t2);
+            if (enter > exit) {
+                return INFINITY;
+            }
+        }
+        return enter;
+    }
+
+    /**
+     * A search for the first particle of the tree that a moving particle hits,
+     * with its own scratch space, so different threads can search at the same time.
+     */
+    public final class Query {
+        private final double[] dvdr = new double[LEAF], dvdv = new double[LEAF], drdr = new double[LEAF];
+        private int a; // the moving particle
+        private double best; // time of the earliest hit found so far (or the limit)
+        private int hit; // the particle hit (or -1)
+
+        /**
+         * Returns how long until particle a (synchronized with the others, and not in the tree)
+         * first hits a particle of the tree, if that happens within the given time,
+         * or {@code Double.POSITIVE_INFINITY} otherwise. As with {@link ParticleN#timeToHit},
+         * it's {@code Double.NEGATIVE_INFINITY} if a is already inside one and moving further in.
+         *
+         * @param a the index of the moving particle
+         * @param limit the longest time to look ahead
+         */
+        public double timeToHit (int a, double limit) {
+            this.a = a;
+            this.best = limit;
+            this.hit = -1;
+            if (ids.length > 0) {
+                visit(0, entry(0, a, limit));
+            }
+            return (hit < 0) ? INFINITY : best;
+        }
+
+        /**Returns the particle hit, as found by the last {@link #timeToHit}.*/
+        public int hit () {
+            return hit;
+        }
+
+        /**Looks for hits in a node that the particle enters at time enter (nearer child first).*/
+        private void visit (int node, double enter) {
+            if (enter > best || enter == INFINITY) {
+                return;
+            }
+            if (left[node] < 0) {
+                int n = to[node] - from[node];
+                Couve.pairProducts(store.r, store.v, store.time, DIM, a, ids, from[node], n, dvdr, dvdv, drdr);
+                for (int k = 0; k < n; k++) {
+                    int b = ids[from[node] + k];
+                    double dt = ParticleN.timeToHit(dvdr[k], dvdv[k], drdr[k], store.radius[a] + store.radius[b]);
+                    if (dt < best || (dt == best && hit < 0)) {
+                        best = dt;
+                        hit = b;
+                    }
+                }
+                return;
+            }
+            double el = entry(left[node], a, best), er = entry(right[node], a, best);
+            if (el <= er) {
+                visit(left[node], el);
+                visit(right[node], er);
+            } else {
+                visit(right[node], er);
+                visit(left[node], el);
+            }
+        }
+    }
+}
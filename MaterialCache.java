@@ -0,0 +1,97 @@
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.texture.Texture;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ *  Shares unshaded materials between geometries: there is only ever one material for each
+ *  combination of color, texture and instancing, so recoloring a geometry is just a
+ *  matter of handing it another (already compiled) material.
+ *  Materials handed out by the cache must not be modified.
+ */
+public class MaterialCache {
+    private static final String UNSHADED = "Common/MatDefs/Misc/Unshaded.j3md";
+
+    private final AssetManager assetManager;
+    private final HashMap<Key, Material> materials = new HashMap<>();
+    private int hits = 0;
+    private int misses = 0;
+
+    /**What a material is made of.*/
+    private static final class Key {
+        private final ColorRGBA color;
+        private final Texture texture;
+        private final boolean instancing;
+
+        private Key (ColorRGBA color, Texture texture, boolean instancing) {
+            this.color = color;
+            this.texture = texture;
+            this.instancing = instancing;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return Objects.equals(this.color, that.color) && this.texture == that.texture
+                    && this.instancing == that.instancing;
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash(color, System.identityHashCode(texture), instancing);
+        }
+    }
+
+    public MaterialCache (AssetManager assetManager) {
+        this.assetManager = assetManager;
+    }
+
+    /**
+     * Returns the unshaded material with the given properties, creating it if needed.
+     *
+     * @param color the color, or {@code null} for none
+     * @param texture the color map, or {@code null} for none
+     * @param instancing whether the material will be used by an InstancedNode
+     */
+    public Material get (ColorRGBA color, Texture texture, boolean instancing) {
+        Key key = new Key(color, texture, instancing);
+        Material mat = materials.get(key);
+        if (mat != null) {
+            hits++;
+            return mat;
+        }
+        misses++;
+        mat = new Material(assetManager, UNSHADED);
+        if (color != null) {
+            mat.setColor("Color", color.clone());
+        }
+        if (texture != null) {
+            mat.setTexture("ColorMap", texture);
+        }
+        if (instancing) {
+            mat.setBoolean("UseInstancing", true);
+        }
+        materials.put(new Key((color == null) ? null : color.clone(), texture, instancing), mat);
+        return mat;
+    }
+
+    /**Number of requests answered with an existing material.*/
+    public int hits () {
+        return hits;
+    }
+
+    /**Number of materials created.*/
+    public int misses () {
+        return misses;
+    }
+
+    @Override
+    public String toString () {
+        return "MaterialCache: " + materials.size() + " materials, " + hits + " hits, " + misses + " misses";
+    }
+}
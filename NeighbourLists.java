@@ -0,0 +1,175 @@
+/**
+ *  Verlet neighbour lists: for every particle, the particles that were close to it
+ *  (within the sum of their radii plus a skin distance) when its list was built,
+ *  so the collision system only has to check those, instead of searching all the
+ *  neighbouring cells of a grid every time it predicts.
+ *
+ *  Each list is built around an anchor, the particle's position at the time.
+ *  Particles a and b are in each other's lists if and only if their anchors are within
+ *  {@code ra + rb + skin} of each other. As long as neither particle strays more than half
+ *  the skin from its anchor, two particles that aren't in each other's lists can't touch,
+ *  so every particle's list is rebuilt (around a new anchor) when it has moved half the skin,
+ *  which {@link #timeToExpire} predicts, and the others' lists are updated to match.
+ *  The anchors are kept in a {@link CellGrid} (with cells a skin wider than a diameter),
+ *  which is only updated when lists are rebuilt, so there are no cell crossings to follow.
+ */
+public class NeighbourLists {
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+    public final int DIM;
+    public final double skin; // how much farther than touching the particles in a list may be
+    private final ParticleStore store; // the particles (by index)
+    private final CellGrid grid; // the anchors; null if every pair should be checked
+    private final double[] anchor; // where each particle's list was built
+    private final int[][] lists; // neighbours of each particle
+    private final int[] sizes; // number of neighbours of each particle
+    private final int[] mark; // list of the last rebuild that each particle was in (before it)
+    private int rebuilds = 0; // number of lists rebuilt so far
+    private final int[] stencil; // scratch for the grid's neighbour enumeration
+    private int rebuilding; // the particle whose list is being rebuilt
+    private java.util.function.IntConsumer added; // told about its new neighbours (or null)
+    private final java.util.function.IntConsumer linker = this::link;
+
+    /**
+     * Builds the lists of all the particles in the store, which must be synchronized.
+     *
+     * @param store the particles
+     * @param skin how much farther than touching two particles in a list may be (positive)
+     */
+    public NeighbourLists (ParticleStore store, double skin) {
+        this.DIM = store.DIM;
+        this.skin = skin;
+        this.store = store;
+        this.anchor = java.util.Arrays.copyOf(store.r, store.size * DIM);
+        this.lists = new int[store.size][];
+        this.sizes = new int[store.size];
+        this.mark = new int[store.size];
+        this.stencil = new int[DIM];
+        this.grid = CellGrid.create(store, skin);
+
+        /*Every pair is found twice (from both ends), so only link each one from its lower index.*/
+        for (int a = 0; a < store.size; a++) {
+            rebuilding = a;
+            if (grid == null) {
+                for (int b = a + 1; b < store.size; b++) {
+                    link(b);
+                }
+            } else {
+                grid.forEachNeighbour(a, stencil, b -> {
+                    if (b > rebuilding) {
+                        link(b);
+                    }
+                });
+            }
+        }
+    }
+
+    /**Returns the neighbours of particle a, in {@code of(a)[0..size(a)-1]}.*/
+    public int[] of (int a) {
+        return lists[a];
+    }
+
+    /**Returns the number of neighbours of particle a.*/
+    public int size (int a) {
+        return sizes[a];
+    }
+
+    /**
+     * Returns the amount of time (counted from when particle a was last synchronized)
+     * until it is half the skin away from its anchor, assuming no intervening collisions.
+     * (It's 0 if it's there already, e.g. because it was pushed out of another particle.)
+     */
+    public double timeToExpire (int a) {
+        double dd = 0, dv = 0, vv = 0;
+        for (int i = 0; i < DIM; i++) {
+            double d = store.r[a*DIM + i] - anchor[a*DIM + i];
+            double v = store.v[a*DIM + i];
+            dd += d*d;
+            dv += d*v;
+            vv += v*v;
+        }
+        double h = skin / 2;
+        if (dd >= h*h) {
+            return 0;
+        }
+        if (vv == 0) {
+            return INFINITY;
+        }
+        double d = dv*dv - vv * (dd - h*h); // positive, since dd < h*h
+        return Math.max((-dv + Math.sqrt(d)) / vv, 0);
+    }
+
+    /**
+     * Rebuilds the list of particle a (which must be synchronized) around where it is now,
+     * and puts it in or takes it out of the other particles' lists to match.
+     *
+     * @param a the particle
+     * @param added told about every particle that wasn't a's neighbour before (may be null)
+     */
+    public void rebuild (int a, java.util.function.IntConsumer added) {
+        /*Take a out of its neighbours' lists, and remember who they were.*/
+        rebuilds++;
+        for (int k = 0; k < sizes[a]; k++) {
+            int b = lists[a][k];
+            mark[b] = rebuilds;
+            unlink(b, a);
+        }
+        sizes[a] = 0;
+
+        System.arraycopy(store.r, a*DIM, anchor, a*DIM, DIM);
+        rebuilding = a;
+        this.added = added;
+        if (grid == null) {
+            for (int b = 0; b < store.size; b++) {
+                link(b);
+            }
+        } else {
+            grid.update(a);
+            grid.forEachNeighbour(a, stencil, linker);
+        }
+        this.added = null;
+    }
+
+    /**Puts the particle being rebuilt and b in each other's lists, if their anchors are close enough.*/
+    private void link (int b) {
+        int a = rebuilding;
+        if (b == a) {
+            return;
+        }
+        double dd = 0;
+        for (int i = 0; i < DIM; i++) {
+            double d = anchor[a*DIM + i] - anchor[b*DIM + i];
+            dd += d*d;
+        }
+        double reach = store.radius[a] + store.radius[b] + skin;
+        if (dd > reach*reach) {
+            return;
+        }
+        append(a, b);
+        append(b, a);
+        if (added != null && mark[b] != rebuilds) {
+            added.accept(b);
+        }
+    }
+
+    private void append (int a, int b) {
+        int[] list = lists[a];
+        if (list == null) {
+            list = lists[a] = new int[4];
+        } else if (sizes[a] == list.length) {
+            list = lists[a] = java.util.Arrays.copyOf(list, 2 * list.length);
+        }
+        list[sizes[a]++] = b;
+    }
+
+    /**Takes b out of the list of a.*/
+    private void unlink (int a, int b) {
+        int[] list = lists[a];
+        for (int k = 0; k < sizes[a]; k++) {
+            if (list[k] == b) {
+                list[k] = list[--sizes[a]]; // fill the hole with the last neighbour
+                return;
+            }
+        }
+    }
+}
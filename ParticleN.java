@@ -7,6 +7,9 @@ import java.util.Arrays;
  *  for moving the particle and for predicting and resolving elastic
  *  collisions with walls and other particles.
  *  It is assumed that the particle is inside a symmetric box centered at 0.
+ *  The state itself lives in a {@link ParticleStore}; a particle is just a view
+ *  of one slot in it. A new particle gets a store of its own, until a collision
+ *  system moves it into a shared one (see {@link #attach}).
  */
 public class ParticleN {
     public static final double BORDERCOORDMAX = 40.0; //1 for stddraw
@@ -24,13 +27,11 @@ public class ParticleN {
 
     public final int DIM; //number of translational degrees of freedom
     public final double radius;
-    private double mass;
-    private final double[] r; // position
-    private final double[] v; // velocity
-    private float[] color; // array of red, green, blue, alpha values
-    /**NOTE: Actually, count is used to indicate that trajectories must be updated.*/
-    private int count; // number of collisions so far
-    private boolean immovable = false;
+    /*The rest of the state (position, velocity, mass, color, collision count...) is in the store.
+    * NOTE: Actually, count is used to indicate that trajectories must be updated.*/
+    ParticleStore store;
+    int id; // index of this particle in the store
+    private int off; // index of this particle's first coordinate in store.r and store.v
 
     // TODO: make getOut smooth
     // TODO: are particles at the exact same position a problem?
@@ -41,12 +42,9 @@ public class ParticleN {
      * Initializes a particle with the specified position, velocity, radius, mass, and color.
      */
     public ParticleN (double[] r, double[] v, double radius, double mass, float[] color) {
-        this.r = r.clone(); //defensive copy
-        this.v = v.clone(); //defensive copy
-        this.DIM = this.r.length;
+        this.DIM = r.length;
         this.radius = radius;
-        this.mass = mass;
-        this.color = color.clone(); //defensive copy
+        init(r, v, radius, mass, color); //defensive copy
     }
 
     /**
@@ -56,63 +54,122 @@ public class ParticleN {
      * @param  N number of dimensions
      */
     public ParticleN (int N) {
+        this(N, DEFAULTRADIUS);
+    }
+
+    /**
+     * Initializes an N-dimensional particle with the specified radius and
+     * a random position and velocity (as above).
+     * @param  N number of dimensions
+     * @param  radius the radius
+     */
+    public ParticleN (int N, double radius) {
         double[] r = new double[N];
         double[] v = new double[N];
 
         for (int i = 0; i < N; i++) {
             /*Careful not to place anything out of the canvas!*/
-            r[i] = StdRandom.uniform(BORDERCOORDMIN+DEFAULTRADIUS, BORDERCOORDMAX-DEFAULTRADIUS);
+            r[i] = StdRandom.uniform(BORDERCOORDMIN+radius, BORDERCOORDMAX-radius);
             v[i] = StdRandom.uniform(-VELRANGE, VELRANGE);
         }
-        this.r = r;
-        this.v = v;
         this.DIM = N;
-        radius = DEFAULTRADIUS;
-        mass   = DEFAULTMASS;
-        color  = DEFAULTCOLOR;
+        this.radius = radius;
+        init(r, v, radius, DEFAULTMASS, DEFAULTCOLOR);
+    }
+
+    /**Initializes a view of particle i in the store.*/
+    ParticleN (ParticleStore store, int i) {
+        this.DIM = store.DIM;
+        this.radius = store.radius[i];
+        this.store = store;
+        this.id = i;
+        this.off = i * DIM;
+    }
+
+    /**Puts this particle in a store of its own.*/
+    private void init (double[] r, double[] v, double radius, double mass, float[] color) {
+        store = new ParticleStore(DIM, 1);
+        id = 0;
+        off = 0;
+        System.arraycopy(r, 0, store.r, 0, DIM);
+        System.arraycopy(v, 0, store.v, 0, DIM);
+        store.radius[0] = radius;
+        store.mass[0] = mass;
+        System.arraycopy(color, 0, store.color, 0, 4);
+    }
+
+    /**
+     * Copies this particle's state into slot i of the given store and makes
+     * this particle a view of that slot from now on.
+     */
+    void attach (ParticleStore store, int i) {
+        if (store.DIM != DIM) {
+            throw new IndexOutOfBoundsException("A particle has the wrong number of dimensions. All particles must be N-dimensional");
+        }
+        System.arraycopy(this.store.r, off, store.r, i * DIM, DIM);
+        System.arraycopy(this.store.v, off, store.v, i * DIM, DIM);
+        System.arraycopy(this.store.color, 4 * id, store.color, 4 * i, 4);
+        store.time[i] = this.store.time[id];
+        store.radius[i] = radius;
+        store.mass[i] = this.store.mass[id];
+        store.count[i] = this.store.count[id];
+        store.immovable[i] = this.store.immovable[id];
+        this.store = store;
+        this.id = i;
+        this.off = i * DIM;
     }
 
     /**Returns this particle's mass.*/
     public double mass () {
-        return mass;
+        return store.mass[id];
     }
 
     /**Returns (a copy of) this particle's color.*/
     public float[] color () {
-        return this.color.clone();
+        return Arrays.copyOfRange(store.color, 4 * id, 4 * id + 4);
     }
 
     /**Changes this particle's color.*/
     public void setColor (float[] color) {
-        this.color = color.clone();
+        System.arraycopy(color, 0, store.color, 4 * id, 4);
     }
 
-    /**Returns the position in the Nth dimension.*/
+    /**Returns the position in the Nth dimension at the time it was last synchronized.*/
     public double position (int N) {
-        return r[N];
+        return store.r[off + N];
+    }
+
+    /**Returns the position in the Nth dimension at time t (extrapolated from the last synchronization).*/
+    public double position (int N, double t) {
+        return store.r[off + N] + store.v[off + N] * (t - store.time[id]);
+    }
+
+    /**Returns the simulation time at which this particle's position was last synchronized.*/
+    public double time () {
+        return store.time[id];
     }
 
     /**Returns the velocity in the Nth dimension.*/
     public double velocity (int N) {
-        return v[N];
+        return store.v[off + N];
     }
 
     /**Prevent this particle from moving.*/
     public void immobilize () {
-        immovable = true;
+        store.immovable[id] = true;
         for (int i = 0; i < DIM; i++) {
-            v[i] = 0;
+            store.v[off + i] = 0;
         }
     }
 
     /**Checks if this particle is immovable.*/
     public boolean isImmovable () {
-        return immovable;
+        return store.immovable[id];
     }
 
     /**Frees this particle from imprisonment.*/
     public void free () {
-        immovable = false;
+        store.immovable[id] = false;
     }
 
     /**
@@ -122,8 +179,33 @@ public class ParticleN {
      * @param  dt the amount of time
      */
     public void move (double dt) {
-        if (!immovable) {
-            Couve.scaledIncrement(r, dt, v); //r += v*dt
+        moveTo(store.time[id] + dt);
+    }
+
+    /**
+     * Synchronizes this particle's position with simulation time t,
+     * moving it in a straight line from where it was last synchronized.
+     *
+     * @param  t the simulation time
+     */
+    public void moveTo (double t) {
+        if (!store.immovable[id]) {
+            double[] r = store.r, v = store.v;
+            double dt = t - store.time[id];
+            for (int i = off; i < off + DIM; i++) {
+                r[i] = r[i] + dt * v[i]; //r += v*(t - time)
+            }
+        }
+        store.time[id] = t;
+    }
+
+    /**Synchronizes the particle that is behind in time with the other one.*/
+    private void sync (ParticleN that) {
+        double thisTime = this.time(), thatTime = that.time();
+        if (thisTime < thatTime) {
+            this.moveTo(thatTime);
+        } else if (thatTime < thisTime) {
+            that.moveTo(thisTime);
         }
     }
 
@@ -137,30 +219,12 @@ public class ParticleN {
      *         walls or other particles
      */
     public int count () {
-        return count;
-    }
-
-    /** Returns the difference between the positions of the two particles.
-     * @return dr = part2.r - part1.r */
-    private static double[] deltaR (ParticleN part1, ParticleN part2) {
-        double[] dr  = part2.r.clone();
-        Couve.scaledIncrement(dr, -1, part1.r);
-
-        return dr;
-    }
-
-    /** Returns the difference between the velocities of the two particles.
-     * @return dv = part2.v - part1.v */
-    private static double[] deltaV (ParticleN part1, ParticleN part2) {
-        double[] dv  = part2.v.clone();
-        Couve.scaledIncrement(dv, -1, part1.v);
-
-        return dv;
+        return store.count[id];
     }
 
     /**
-     * Returns the amount of time for this particle to collide with the specified
-     * particle, assuming no intervening collisions.
+     * Returns the amount of time (counted from when this particle was last synchronized)
+     * for this particle to collide with the specified particle, assuming no intervening collisions.
      *
      * @param  that the other particle
      * @return the amount of time for this particle to collide with the specified
@@ -172,21 +236,37 @@ public class ParticleN {
             return INFINITY;
         }
 
-        /*The answer should be the same regardless of which particle is this or that.*/
-        double[] dr = ParticleN.deltaR(this, that); //initial position
-        double[] dv = ParticleN.deltaV(this, that); //initial velocity
+        /*The answer should be the same regardless of which particle is this or that.
+        * dr = that.r - this.r (initial position, with that extrapolated to this particle's time)
+        * dv = that.v - this.v (initial velocity)
+        * All three dot products are computed in one pass, without temporary arrays.*/
+        double[] ra = this.store.r, va = this.store.v, rb = that.store.r, vb = that.store.v;
+        int oa = this.off, ob = that.off;
+        double lag = this.time() - that.time();
+        double dvdr = 0, dvdv = 0, drdr = 0;
+        for (int i = 0; i < DIM; i++) {
+            double dr = rb[ob + i] + vb[ob + i] * lag - ra[oa + i];
+            double dv = vb[ob + i] - va[oa + i];
+            dvdr += dv * dr;
+            dvdv += dv * dv;
+            drdr += dr * dr;
+        }
 
-        double dvdr = Couve.dotProduct(dv, dr);
+        return timeToHit(dvdr, dvdv, drdr, this.radius + that.radius);
+    }
+
+    /**
+     * Returns the amount of time for two particles to collide, given dr.dv, dv.dv and dr.dr
+     * (see {@link #timeToHit(ParticleN)}) and the sum of their radii.
+     */
+    static double timeToHit (double dvdr, double dvdv, double drdr, double sigma) {
         if (dvdr > 0) {
             return INFINITY;
         }
-        double dvdv = Couve.dotProduct(dv, dv);
         if (dvdv == 0) {
             return INFINITY;
         }
 
-        double drdr = Couve.dotProduct(dr, dr);
-        double sigma = this.radius + that.radius;
         // TODO: are overlapping particles a problem?
         if (drdr < sigma*sigma) {
             System.err.println("overlapping particles!");
@@ -202,30 +282,31 @@ public class ParticleN {
     }
 
     /**
-     * Returns the amount of time for this particle to collide with a wall
-     * in the Nth axis, assuming no intervening collisions.
+     * Returns the amount of time (counted from when this particle was last synchronized)
+     * for this particle to collide with a wall in the Nth axis, assuming no intervening collisions.
      *
      * @param N the number which identifies an axis that connects two opposite walls
      * @return the amount of time for this particle to collide with a vertical wall,
-     *         assuming no intervening collisions;
+     *         assuming no intervening collisions (0 if it's already past the wall);
      *         {@code Double.POSITIVE_INFINITY} if the particle will not collide
      *         with a vertical wall
      */
     public double timeToHitNWall (int N) {
         //current values
-        double vel = v[N];
-        double pos = r[N];
+        double vel = store.v[off + N];
+        double pos = store.r[off + N];
 
+        /*Never in the past: a particle past the wall bounces right away.*/
         if (vel > 0) {
-            return (BORDERCOORDMAX - pos - radius) / vel;
+            return Math.max((BORDERCOORDMAX - pos - radius) / vel, 0);
         } else if (vel < 0) {
-            return (pos - BORDERCOORDMIN - radius) / -vel; //vel is negative!
+            return Math.max((pos - BORDERCOORDMIN - radius) / -vel, 0); //vel is negative!
         } else {
             return INFINITY;
         }
     }
 
-    /**Calculates timeToHitNWall for all walls.*/
+    /**Calculates timeToHitNWall for all walls (in a new array; use timeToHitNWall in hot loops).*/
     public double[] timeToHitWalls () {
         double[] times = new double[DIM];
 
@@ -249,15 +330,20 @@ public class ParticleN {
         if (this.isImmovable() && that.isImmovable()) {
             return; /*Nothing to be done if they're both immovable.*/
         }
+        sync(that); /*Velocities are about to change, so the positions must be up to date.*/
 
-        /*Calculate some important quantities.*/
-        double[] dr = ParticleN.deltaR(this, that);
-        double[] dv = ParticleN.deltaV(this, that);
-        double dvdr = Couve.dotProduct(dv, dr);
+        /*Calculate some important quantities (dr = that.r - this.r, dv = that.v - this.v).*/
+        double[] ra = this.store.r, va = this.store.v, rb = that.store.r, vb = that.store.v;
+        int oa = this.off, ob = that.off;
+        double dvdr = 0;
+        for (int i = 0; i < DIM; i++) {
+            dvdr += (vb[ob + i] - va[oa + i]) * (rb[ob + i] - ra[oa + i]);
+        }
         double dist = this.radius + that.radius; // distance between particle centers at collision
+        double thisMass = this.mass(), thatMass = that.mass();
 
         /*Impulse from normal forces.*/
-        double impulseMagnitude = -2 * this.mass * that.mass * dvdr / ((this.mass + that.mass) * dist);
+        double impulseMagnitude = -2 * thisMass * thatMass * dvdr / ((thisMass + thatMass) * dist);
 
         //double[] impulse = Couve.scale(impulseMagnitude/dist, dr);
 
@@ -267,14 +353,19 @@ public class ParticleN {
         if (this.isImmovable() || that.isImmovable()) {
             factor = 2;
         }
-        /*Update velocities and collision counts.*/
+        /*Update velocities (along dr) and collision counts.*/
+        double thisScale = this.isImmovable() ? 0 : -1*factor / thisMass * impulseMagnitude / dist;
+        double thatScale = that.isImmovable() ? 0 : 1*factor / thatMass * impulseMagnitude / dist;
+        for (int i = 0; i < DIM; i++) {
+            double dr = rb[ob + i] - ra[oa + i];
+            va[oa + i] = va[oa + i] + thisScale * dr;
+            vb[ob + i] = vb[ob + i] + thatScale * dr;
+        }
         if (!this.isImmovable()) {
-            Couve.scaledIncrement(this.v, -1*factor / this.mass * impulseMagnitude / dist, dr);
-            this.count++;
+            this.store.count[this.id]++;
         }
         if (!that.isImmovable()) {
-            Couve.scaledIncrement(that.v, 1*factor / that.mass * impulseMagnitude / dist, dr);
-            that.count++;
+            that.store.count[that.id]++;
         }
 
         /*Overriding subclasses have the chance to do something here.*/
@@ -287,47 +378,118 @@ public class ParticleN {
     }
 
     /**Separates the two particles if one is inside the other and returns
-     * {@code true} if something was done.*/
+     * {@code true} if something was done. An immovable particle is never moved,
+     * and a particle is never pushed through a wall.*/
     public boolean getOut (ParticleN that) {
         // TODO: make getOut smooth
         // TODO: are particles at the exact same position a problem?
         // TODO: what if someone tries to spawn more particles than fit inside the volume?
 
+        sync(that);
         double combinedRadius = this.radius + that.radius; // distance between particle centers at collision
-        double[] dr = ParticleN.deltaR(this, that);
-        double drdr = Couve.dotProduct(dr, dr); // distance^2 between particles
+        double[] ra = this.store.r, rb = that.store.r;
+        int oa = this.off, ob = that.off;
+        double drdr = 0; // distance^2 between particles
+        for (int i = 0; i < DIM; i++) {
+            double dr = rb[ob + i] - ra[oa + i];
+            drdr += dr * dr;
+        }
         boolean inside = (drdr < combinedRadius*combinedRadius - EPSILON);
 
         if (inside) {
-            for (int i = 0; i < dr.length; i++) {
-                if (dr[i] == 0) {
-                    System.err.println("positions are exactly equal!!");
-                    System.err.println(Arrays.toString(dr));
+            // I thought it might look better if switched around.
+            double thisScale = -that.radius / combinedRadius;
+            double thatScale = this.radius / combinedRadius;
+            if (this.isImmovable()) { /*Immovable particles stay put; the other one goes all the way.*/
+                thisScale = 0;
+                thatScale = 1;
+            } else if (that.isImmovable()) {
+                thisScale = -1;
+                thatScale = 0;
+            }
+            for (int i = 0; i < DIM; i++) {
+                double dr = rb[ob + i] - ra[oa + i];
+                if (dr == 0) {
+                    System.err.println("positions are exactly equal!! (axis "+i+")");
+                }
+                if (!this.isImmovable()) {
+                    ra[oa + i] = insideWalls(ra[oa + i] + thisScale * dr, this.radius);
+                }
+                if (!that.isImmovable()) {
+                    rb[ob + i] = insideWalls(rb[ob + i] + thatScale * dr, that.radius);
                 }
             }
 
-            // I thought it might look better if switched around.
-            Couve.scaledIncrement(this.r, -that.radius / combinedRadius, dr);
-            Couve.scaledIncrement(that.r, this.radius / combinedRadius, dr);
-
             /*Update collision counts to indicate that trajectories must be updated.*/
-            this.count++;
-            that.count++;
+            if (!this.isImmovable()) {
+                this.store.count[this.id]++;
+            }
+            if (!that.isImmovable()) {
+                that.store.count[that.id]++;
+            }
         }
 
         return inside;
     }
 
+    /**Returns coordinate x, moved back between the walls if a ball of the given radius there would cross one.*/
+    private static double insideWalls (double x, double radius) {
+        return Math.max(BORDERCOORDMIN + radius, Math.min(BORDERCOORDMAX - radius, x));
+    }
+
     /**
      * Updates the velocity of this particle upon collision with a vertical
      * wall (by reflecting the velocity in the direction corresponding to the number N).
-     * Assumes that the particle is colliding with a wall in the Nth axis at this instant.
+     * Assumes that the particle is colliding with a wall in the Nth axis at this instant
+     * (and has been synchronized with it).
      *
      * @param N the number which identifies an axis that connects two opposite walls
      */
     public void bounceOffNWall (int N) {
-        v[N] = -v[N];
-        count++;
+        store.v[off + N] = -store.v[off + N];
+        store.count[id]++;
+    }
+
+    /**
+     * Allocation regression check for the collision kernels: runs timeToHit, timeToHitNWall,
+     * bounceOff and getOut many times and exits with status 1 if they allocated anything.
+     * Usage: {@code java ParticleN [DIM]}
+     */
+    public static void main (String[] args) {
+        int N = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        ParticleN[] parts = new ParticleN[64];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new ParticleN(N);
+        }
+
+        long calls = 0;
+        double sink = 0;
+        long allocated = 0;
+        for (int round = 0; round < 2; round++) { // the first round is a warm-up
+            calls = 0;
+            long before = mx.getThreadAllocatedBytes(thread);
+            for (int k = 0; k < 2000; k++) {
+                for (int i = 0; i < parts.length; i++) {
+                    ParticleN a = parts[i];
+                    ParticleN b = parts[(i + k + 1) % parts.length];
+                    a.move(0.001);
+                    sink += a.timeToHit(b) + a.timeToHitNWall(k % N);
+                    a.bounceOff(b);
+                    a.getOut(b);
+                    calls++;
+                }
+            }
+            allocated = mx.getThreadAllocatedBytes(thread) - before;
+        }
+
+        System.out.println("kernel calls: " + calls + ", bytes allocated: " + allocated
+                + " (" + ((double) allocated / calls) + " per call) [" + (sink != 0) + "]");
+        if (allocated > 0) {
+            System.exit(1);
+        }
     }
 
     /**Prints general information about this particle.*/
@@ -336,12 +498,13 @@ public class ParticleN {
         return "ParticleN{" +
                 // "DIM=" + DIM +
                 ", radius=" + radius +
-                ", mass=" + mass +
-                ", r=" + Arrays.toString(r) +
-                ", v=" + Arrays.toString(v) +
-                // ", color=" + Arrays.toString(color) +
-                ", count=" + count +
-                ", immovable=" + immovable +
+                ", mass=" + mass() +
+                ", time=" + time() +
+                ", r=" + Arrays.toString(Arrays.copyOfRange(store.r, off, off + DIM)) +
+                ", v=" + Arrays.toString(Arrays.copyOfRange(store.v, off, off + DIM)) +
+                // ", color=" + Arrays.toString(color()) +
+                ", count=" + count() +
+                ", immovable=" + isImmovable() +
                 '}';
     }
 }
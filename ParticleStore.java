@@ -0,0 +1,100 @@
+/**
+ *  The state of a fixed number of N-dimensional particles, kept in flat primitive arrays
+ *  (a structure of arrays) instead of one object per particle.
+ *  The coordinates of particle i occupy {@code r[i*DIM]} to {@code r[i*DIM + DIM-1]}
+ *  (and likewise for {@code v}); everything else is a parallel array indexed by i.
+ *  {@link ParticleN} objects are views into a store, so existing code can keep
+ *  working with particles while loops over all of them stay cache-friendly.
+ */
+public class ParticleStore {
+    public final int DIM; // number of translational degrees of freedom
+    public final int size; // number of particles
+
+    final double[] r; // positions at time[i]
+    final double[] v; // velocities
+    final double[] time; // simulation time at which each position was last synchronized
+    final double[] radius;
+    final double[] mass;
+    final float[] color; // 4 consecutive values (red, green, blue, alpha) per particle
+    final int[] count; // number of collisions so far
+    final boolean[] immovable;
+    final int[] cell; // index of the CellGrid cell containing each particle (if any)
+    final int[] cellSlot; // position of each particle in that cell's list
+
+    /**
+     * Initializes a store for {@code size} N-dimensional particles, all at rest at the origin.
+     *
+     * @param N the number of spatial dimensions
+     * @param size the number of particles
+     */
+    public ParticleStore (int N, int size) {
+        this.DIM = N;
+        this.size = size;
+        r = new double[size * N];
+        v = new double[size * N];
+        time = new double[size];
+        radius = new double[size];
+        mass = new double[size];
+        color = new float[size * 4];
+        count = new int[size];
+        immovable = new boolean[size];
+        cell = new int[size];
+        cellSlot = new int[size];
+        java.util.Arrays.fill(cell, -1);
+    }
+
+    /**Returns a new view of every particle in this store.*/
+    public ParticleN[] views () {
+        ParticleN[] parts = new ParticleN[size];
+        for (int i = 0; i < size; i++) {
+            parts[i] = new ParticleN(this, i);
+        }
+        return parts;
+    }
+
+    /**Copies the state of particle j of another store into slot i (but not its grid cell).*/
+    void copy (int i, ParticleStore from, int j) {
+        System.arraycopy(from.r, j * DIM, r, i * DIM, DIM);
+        System.arraycopy(from.v, j * DIM, v, i * DIM, DIM);
+        System.arraycopy(from.color, 4 * j, color, 4 * i, 4);
+        time[i] = from.time[j];
+        radius[i] = from.radius[j];
+        mass[i] = from.mass[j];
+        count[i] = from.count[j];
+        immovable[i] = from.immovable[j];
+    }
+
+    /**Returns the position of particle i in the Nth dimension at time t.*/
+    public double position (int i, int N, double t) {
+        return r[i*DIM + N] + v[i*DIM + N] * (t - time[i]);
+    }
+
+    /**Returns the velocity of particle i in the Nth dimension.*/
+    public double velocity (int i, int N) {
+        return v[i*DIM + N];
+    }
+
+    /**Returns the number of collisions of particle i so far.*/
+    public int count (int i) {
+        return count[i];
+    }
+
+    /**Checks if particle i is immovable.*/
+    public boolean isImmovable (int i) {
+        return immovable[i];
+    }
+
+    /**Synchronizes the positions of all particles with simulation time t.*/
+    public void moveAllTo (double t) {
+        for (int i = 0; i < size; i++) {
+            if (!immovable[i]) {
+                double dt = t - time[i];
+                int off = i * DIM;
+                for (int k = off; k < off + DIM; k++) {
+                    r[k] = r[k] + dt * v[k];
+                }
+            }
+            time[i] = t;
+        }
+    }
+}
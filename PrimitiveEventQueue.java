@@ -0,0 +1,180 @@
+import java.util.NoSuchElementException;
+
+/**
+ *  An {@link EventQueue} that keeps a single event per particle, like {@link IndexedEventQueue},
+ *  but stores the events' fields in parallel primitive arrays indexed by the id of the
+ *  event's particle {@code a}, instead of as {@link CollisionSystemRN.Event} objects.
+ *  The indexed binary heap of ids compares the times in {@code time[]} directly, and
+ *  predicted events are copied in from the collision system's batches, so nothing is
+ *  allocated per event (or dereferenced per comparison).
+ *  The event returned by {@link #min} and {@link #delMin} is a single reused object,
+ *  overwritten every time.
+ */
+public class PrimitiveEventQueue implements EventQueue {
+    private final int[] pq; // binary heap of particle ids, 1-based
+    private final int[] qp; // position of each particle id in pq, or -1
+    /*The event of each particle id (as a).*/
+    private final double[] time;
+    private final int[] b; // the other particle, or -1
+    private final int[] axis; // the axis of a wall collision or cell crossing, or -1
+    private final CollisionSystemRN.Event.Kind[] kind;
+    private final int[] countA, countB; // collision counts at event creation
+    private final ParticleN[] particles; // the particles seen so far, by id
+    private final CollisionSystemRN.Event shown = new CollisionSystemRN.Event(); // what min and delMin return
+    private int n = 0; // number of events
+
+    /**
+     * Initializes an empty queue for particles with ids from 0 to {@code maxN-1}.
+     *
+     * @param maxN the number of particles
+     */
+    public PrimitiveEventQueue (int maxN) {
+        pq = new int[maxN + 1];
+        qp = new int[maxN];
+        time = new double[maxN];
+        b = new int[maxN];
+        axis = new int[maxN];
+        kind = new CollisionSystemRN.Event.Kind[maxN];
+        countA = new int[maxN];
+        countB = new int[maxN];
+        particles = new ParticleN[maxN];
+        java.util.Arrays.fill(qp, -1);
+    }
+
+    /**Sets the event of particle {@code e.a}, replacing its previous one.
+     * (The collision system inserts batches instead, which don't need Event objects.)*/
+    public void insert (CollisionSystemRN.Event e) {
+        int i = e.a.id;
+        double old = time[i];
+        particles[i] = e.a;
+        time[i] = e.time;
+        axis[i] = e.N;
+        kind[i] = e.kind;
+        countA[i] = e.countA;
+        b[i] = (e.b == null) ? -1 : e.b.id;
+        if (e.b != null) {
+            particles[e.b.id] = e.b;
+        }
+        countB[i] = e.countB;
+        place(i, old, false);
+    }
+
+    /**Sets the events of the particles in the batch, in order, replacing their previous ones.
+     * If the queue is empty, they're placed and heapified bottom-up (linear time).*/
+    @Override
+    public void insertAll (CollisionSystemRN.EventBatch batch) {
+        boolean heapify = (n == 0);
+        for (int k = 0; k < batch.size(); k++) {
+            int i = batch.a[k];
+            double old = time[i];
+            set(i, batch, k);
+            place(i, old, heapify);
+        }
+        if (heapify) {
+            for (int k = n/2; k >= 1; k--) {
+                sink(k);
+            }
+        }
+    }
+
+    /**Copies event k of the batch into the slot of its particle i.*/
+    private void set (int i, CollisionSystemRN.EventBatch batch, int k) {
+        ParticleN a = batch.particle(i);
+        particles[i] = a;
+        time[i] = batch.time[k];
+        axis[i] = batch.N[k];
+        kind[i] = batch.kind[k];
+        countA[i] = a.count();
+        int j = batch.b[k];
+        b[i] = j;
+        if (j >= 0) {
+            ParticleN other = batch.particle(j);
+            particles[j] = other;
+            countB[i] = other.count();
+        } else {
+            countB[i] = -1;
+        }
+    }
+
+    /**Puts particle i (whose event just changed from time old) in its place in the heap,
+     * or just at the end, if the heap is going to be heapified anyway.*/
+    private void place (int i, double old, boolean heapify) {
+        if (qp[i] == -1) {
+            n++;
+            qp[i] = n;
+            pq[n] = i;
+            if (!heapify) {
+                swim(n);
+            }
+        } else if (!heapify) {
+            if (time[i] < old) {
+                swim(qp[i]);
+            } else {
+                sink(qp[i]);
+            }
+        }
+    }
+
+    /**Shows the event of particle i in the reused event object.*/
+    private CollisionSystemRN.Event show (int i) {
+        shown.set(time[i], particles[i], (b[i] < 0) ? null : particles[b[i]], axis[i], kind[i],
+                countA[i], countB[i]);
+        return shown;
+    }
+
+    public CollisionSystemRN.Event min () {
+        if (n == 0) throw new NoSuchElementException("Priority queue underflow");
+        return show(pq[1]);
+    }
+
+    public CollisionSystemRN.Event delMin () {
+        if (n == 0) throw new NoSuchElementException("Priority queue underflow");
+        int i = pq[1];
+        CollisionSystemRN.Event min = show(i);
+        exch(1, n--);
+        sink(1);
+        qp[i] = -1;
+        return min;
+    }
+
+    public boolean isEmpty () {
+        return n == 0;
+    }
+
+    public int size () {
+        return n;
+    }
+
+    public boolean onePerParticle () {
+        return true;
+    }
+
+    private boolean greater (int i, int j) {
+        return time[pq[i]] > time[pq[j]];
+    }
+
+    private void exch (int i, int j) {
+        int swap = pq[i];
+        pq[i] = pq[j];
+        pq[j] = swap;
+        qp[pq[i]] = i;
+        qp[pq[j]] = j;
+    }
+
+    private void swim (int k) {
+        while (k > 1 && greater(k/2, k)) {
+            exch(k, k/2);
+            k = k/2;
+        }
+    }
+
+    private void sink (int k) {
+        while (2*k <= n) {
+            int j = 2*k;
+            if (j < n && greater(j, j+1)) j++;
+            if (!greater(k, j)) break;
+            exch(k, j);
+            k = j;
+        }
+    }
+}
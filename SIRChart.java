@@ -0,0 +1,109 @@
+import com.jme3.scene.Geometry;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.shape.Quad;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.image.ColorSpace;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ *  A live, stacked S/I/R chart drawn into a texture on a quad (to be attached to the guiNode).
+ *  Every column of the texture is one sample: infected (red) at the bottom, then susceptible
+ *  (green), then recovered (blue). The columns form a ring buffer: a new sample overwrites the
+ *  oldest column, and the quad's texture coordinates are shifted so the newest is on the right.
+ *  A sample costs one column of pixel writes, and the texture is uploaded at most
+ *  {@link #REFRESH_RATE} times per second, so the chart is cheap to keep on every frame.
+ */
+public class SIRChart {
+    private static final double REFRESH_RATE = 10; // texture uploads per second (at most)
+    private static final byte[] RED = {(byte) 255, 0, 0, (byte) 255};
+    private static final byte[] GREEN = {0, (byte) 255, 0, (byte) 255};
+    private static final byte[] BLUE = {0, 0, (byte) 255, (byte) 255};
+
+    private final int width; // number of samples shown
+    private final int height;
+    private final double interval; // simulated time between samples
+    private final ByteBuffer pixels; // RGBA, row 0 at the bottom
+    private final Image image;
+    private final Quad quad;
+    private final Geometry geometry;
+
+    private int next = 0; // column for the next sample
+    private double nextTime = Double.NEGATIVE_INFINITY; // simulated time of the next sample
+    private boolean dirty = false; // sampled since the last upload?
+    private long lastUpload = 0; // System.nanoTime() of the last upload
+
+    /**
+     * Creates an empty chart.
+     *
+     * @param materials where to get the chart's material from
+     * @param width the width in pixels (= number of samples shown)
+     * @param height the height in pixels
+     * @param interval the simulated time between samples
+     */
+    public SIRChart (MaterialCache materials, int width, int height, double interval) {
+        this.width = width;
+        this.height = height;
+        this.interval = interval;
+        this.pixels = BufferUtils.createByteBuffer(4 * width * height); // all zero: transparent
+        this.image = new Image(Image.Format.RGBA8, width, height, pixels, ColorSpace.Linear);
+        Texture2D texture = new Texture2D(image);
+        texture.setWrap(Texture.WrapAxis.S, Texture.WrapMode.Repeat);
+        texture.setMagFilter(Texture.MagFilter.Nearest);
+        texture.setMinFilter(Texture.MinFilter.NearestNoMipMaps);
+
+        this.quad = new Quad(width, height);
+        this.geometry = new Geometry("chart", quad);
+        geometry.setMaterial(materials.get(null, texture, false));
+    }
+
+    /**The Geometry to attach to the scene (it's width x height units, so meant for the guiNode).*/
+    public Geometry geometry () {
+        return geometry;
+    }
+
+    /**
+     * Records the counts of susceptible, infected and recovered beings at simulated time t,
+     * if at least one interval has passed since the last sample.
+     */
+    public void sample (double t, int susceptible, int infected, int recovered) {
+        if (t < nextTime) {
+            return;
+        }
+        nextTime = (nextTime + interval > t) ? nextTime + interval : t + interval; // don't try to catch up
+
+        double total = Math.max(1, susceptible + infected + recovered);
+        int i = (int) Math.round(height * infected / total);
+        int s = (int) Math.round(height * (infected + susceptible) / total);
+        for (int y = 0; y < height; y++) {
+            pixels.position(4 * (y * width + next));
+            pixels.put((y < i) ? RED : (y < s) ? GREEN : BLUE);
+        }
+        pixels.rewind();
+        next = (next + 1) % width;
+        dirty = true;
+    }
+
+    /**Uploads the new samples, unless that was done very recently. Call once per frame.*/
+    public void update () {
+        long now = System.nanoTime();
+        if (!dirty || now - lastUpload < 1e9 / REFRESH_RATE) {
+            return;
+        }
+        lastUpload = now;
+        dirty = false;
+
+        /*Scroll: the oldest column (the next one to be overwritten) goes on the left.*/
+        float u = (float) next / width;
+        VertexBuffer tc = quad.getBuffer(VertexBuffer.Type.TexCoord);
+        FloatBuffer fb = (FloatBuffer) tc.getData();
+        fb.clear();
+        fb.put(u).put(0).put(u + 1).put(0).put(u + 1).put(1).put(u).put(1);
+        fb.flip();
+        tc.updateData(fb);
+        image.setUpdateNeeded();
+    }
+}
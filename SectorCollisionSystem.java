@@ -0,0 +1,614 @@
+import edu.princeton.cs.algs4.StdRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *  A multi-threaded version of {@link CollisionSystemRN}: the box is cut into slabs
+ *  ("sectors") along one axis, and every sector is simulated by a CollisionSystemRN
+ *  of its own, with its own event queue, on its own thread.
+ *
+ *  Synchronization is optimistic, one window of time at a time. At the start of a window,
+ *  every particle is owned by the sector its center is in. Each sector gets a copy of its
+ *  particles plus a halo (copies of the particles less than {@code halo} away from its slab),
+ *  and simulates all of them up to the end of the window, independently of the others.
+ *  Then the sectors are checked against each other:
+ *
+ *    - whenever a halo copy collided with a particle of the sector, its history so far
+ *      (partners and times) must be exactly the history of the original in the sector
+ *      that owns it, so it was in the right place at the right time;
+ *    - no particle may have moved farther than {@code reach} along the axis, so everything
+ *      that could have hit a particle was in its sector's halo.
+ *
+ *  If so, every sector simulated everything its particles could have touched, correctly,
+ *  so their collisions are the ones a sequential simulation of the window would find;
+ *  the owners' results are copied back. If not (usually because a wrong halo copy passed
+ *  its mistake on to a right one), the window is rolled back and tried again at half the length,
+ *  down to a minimum, where it's simulated by a sequential CollisionSystemRN instead.
+ *  A window is at most as long as it takes the fastest particle to move {@code reach},
+ *  and grows back to that after a rollback.
+ *
+ *  The sectors use {@link HeapEventQueue}s that take every event. That way, a particle's state
+ *  only changes at its own events, so the copies of a particle in different sectors
+ *  follow it exactly (to the last bit) as long as they have the same history.
+ *
+ *  The collisions of a window are reported to the particles (see
+ *  {@link ParticleN#handleBinaryCollision}) and to the listener when the window is done,
+ *  in order of time. Since the sectors predict every particle again at the start of each window,
+ *  the times of later collisions differ from those of CollisionSystemRN by rounding errors;
+ *  {@link #main} compares the two.
+ */
+public class SectorCollisionSystem implements CollisionEngine {
+    private static final double HALO = 0.5; // halo width, in sector widths
+    private static final double MIN_HALO = 6; // minimum halo width, in (maximum) radii
+    private static final double MIN_SCALE = 1.0/16; // shortest window, in units of reach over the top speed
+
+    private final int DIM;
+    private final int axis; // the sectors are slabs along this axis
+    private final double width; // width of a sector
+    private final double halo; // width of the halo around each sector
+    private final double reach; // how far a particle may move along the axis in one window
+    private final int cellsPerAxis, gridAxes; // every sector uses the same grid, so crossings happen at the same times
+    private final Sector[] sectors;
+    private final ExecutorService threads;
+    private final int[] owner; // sector owning each particle in the current window
+    private double t = 0.0; // simulation clock time
+    private double scale = 1; // window length, in units of reach over the top speed (at most 1)
+    private long collisionCount = 0; // number of collisions so far
+    private long windows = 0; // number of windows simulated so far
+    private long rollbacks = 0; // number of windows that were rolled back
+    CollisionSystemRN.Listener listener; // told about every collision; null if nobody's listening
+    final ParticleStore store; // the state of all particles (at the start of the window, during one)
+    final ParticleN[] particles; // the array of particles (views of the store, by index)
+
+    /**
+     * Initializes a system with the specified collection of particles.
+     * The individual particles will be mutated during the simulation.
+     * Their state is moved into a new {@link ParticleStore}, which they become views of.
+     *
+     * @param particles the array of particles
+     * @param N the number of spatial dimensions
+     * @param axis the axis along which to cut the box into sectors
+     * @param sectorCount the number of sectors (and threads)
+     * @throws IllegalArgumentException if there's no such axis or no sector
+     */
+    public SectorCollisionSystem (ParticleN[] particles, int N, int axis, int sectorCount) {
+        if (axis < 0 || axis >= N) {
+            throw new IllegalArgumentException("There's no axis " + axis + " in " + N + " dimensions.");
+        }
+        if (sectorCount < 1) {
+            throw new IllegalArgumentException("There must be at least one sector.");
+        }
+        this.particles = particles.clone(); // defensive copy
+        this.store = CollisionSystemRN.storeOf(this.particles, N);
+        this.DIM = N;
+        this.axis = axis;
+        this.owner = new int[store.size];
+        this.cellsPerAxis = CellGrid.cellsPerAxis(store);
+        this.gridAxes = CellGrid.axes(store);
+
+        double maxRadius = 0;
+        for (int i = 0; i < store.size; i++) {
+            maxRadius = Math.max(maxRadius, store.radius[i]);
+        }
+        this.width = (ParticleN.BORDERCOORDMAX - ParticleN.BORDERCOORDMIN) / sectorCount;
+        this.halo = Math.max(HALO * width, MIN_HALO * maxRadius);
+        this.reach = (halo - 2 * maxRadius) / 2; // two particles that meet came from at most halo apart
+
+        this.sectors = new Sector[sectorCount];
+        for (int s = 0; s < sectorCount; s++) {
+            sectors[s] = new Sector();
+        }
+        this.threads = Executors.newFixedThreadPool(sectorCount, r -> {
+            Thread thread = new Thread(r, "sector");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**Returns the current simulation time.*/
+    public double time () {
+        return t;
+    }
+
+    public ParticleStore store () {
+        return store;
+    }
+
+    public ParticleN[] particles () {
+        return particles;
+    }
+
+    /**Returns the number of collisions (between particles or with walls) so far.*/
+    public long collisionCount () {
+        return collisionCount;
+    }
+
+    /**Returns the number of windows simulated so far.*/
+    public long windows () {
+        return windows;
+    }
+
+    /**Returns the number of windows that were rolled back (and tried again).*/
+    public long rollbacks () {
+        return rollbacks;
+    }
+
+    /**Stops the sector threads. The system can't be advanced afterwards.*/
+    public void shutdown () {
+        threads.shutdownNow();
+    }
+
+    /**
+     * Advances the simulation of the system of particles in {@code dt} units of time,
+     * in as many windows as it takes.
+     * Afterwards, positions can be extrapolated with {@link ParticleStore#position}, as usual.
+     *
+     * @param dt the amount of time to advance
+     */
+    public void advance (double dt) {
+        double upto = t + dt;
+        while (t < upto) {
+            double end = Math.min(upto, t + window());
+            if (simulateInSectors(end)) {
+                scale = Math.min(1, 1.25 * scale);
+            } else {
+                rollbacks++;
+                if (scale > MIN_SCALE) { /*Try again with a shorter window.*/
+                    scale = Math.max(MIN_SCALE, scale / 2);
+                    continue;
+                }
+                simulateSequentially(end);
+            }
+            t = end;
+            windows++;
+        }
+    }
+
+    /**Returns the length of the next window.*/
+    private double window () {
+        double top = 0; // top speed
+        for (int i = 0; i < store.size; i++) {
+            if (!store.immovable[i]) {
+                double vv = 0;
+                for (int k = i * DIM; k < (i + 1) * DIM; k++) {
+                    vv += store.v[k] * store.v[k];
+                }
+                top = Math.max(top, vv);
+            }
+        }
+        return (top > 0) ? scale * reach / Math.sqrt(top) : Double.POSITIVE_INFINITY;
+    }
+
+    /**Returns the sector containing coordinate x of the axis (the first and last one extend forever).*/
+    private int sectorOf (double x) {
+        int s = (int) Math.floor((x - ParticleN.BORDERCOORDMIN) / width);
+        return Math.max(0, Math.min(sectors.length - 1, s));
+    }
+
+    /**
+     * Simulates the window up to time end in parallel, and checks the results.
+     * Returns {@code true} (with the results copied back and reported) if they're right,
+     * or {@code false} (with everything as it was) if not.
+     */
+    private boolean simulateInSectors (double end) {
+        /*Hand out the particles and their copies.*/
+        for (Sector sector : sectors) {
+            sector.size = 0;
+        }
+        for (int i = 0; i < store.size; i++) {
+            double x = store.position(i, axis, t);
+            owner[i] = sectorOf(x);
+            for (int s = sectorOf(x - halo); s <= sectorOf(x + halo); s++) {
+                sectors[s].add(i);
+            }
+        }
+
+        /*Simulate every sector on its own thread.*/
+        for (Sector sector : sectors) {
+            sector.end = end;
+        }
+        try {
+            for (Future<Void> f : threads.invokeAll(Arrays.asList(sectors))) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("A sector failed to simulate its window.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while simulating a window.", e);
+        }
+
+        boolean valid = isConsistent();
+        if (valid) {
+            /*Copy back what the owners found, then tell everybody about the collisions.*/
+            for (int s = 0; s < sectors.length; s++) {
+                Sector sector = sectors[s];
+                for (int j = 0; j < sector.size; j++) {
+                    if (owner[sector.ids[j]] == s) {
+                        store.copy(sector.ids[j], sector.copy, j);
+                    }
+                }
+            }
+            report();
+        }
+        for (Sector sector : sectors) {
+            sector.clear();
+        }
+        return valid;
+    }
+
+    /**Checks that every sector's particles moved at most reach, and only met halo copies that
+     * were where the originals were (see above).*/
+    private boolean isConsistent () {
+        for (int s = 0; s < sectors.length; s++) {
+            Sector sector = sectors[s];
+            for (int j = 0; j < sector.size; j++) {
+                int i = sector.ids[j];
+                if (owner[i] == s) {
+                    if (sector.shift[j] > reach) {
+                        return false;
+                    }
+                    continue;
+                }
+
+                /*A copy: find its last collision with a particle of this sector.*/
+                int last = -1;
+                for (int k = sector.historyStart[j]; k < sector.historyStart[j + 1]; k++) {
+                    int partner = sector.partner(sector.history[k], j);
+                    if (partner >= 0 && owner[partner] == s) {
+                        last = k - sector.historyStart[j];
+                    }
+                }
+                if (last < 0) {
+                    continue;
+                }
+
+                /*Its history up to there must be that of the original.*/
+                Sector home = sectors[owner[i]];
+                int h = home.local[i];
+                if (home.historyStart[h + 1] - home.historyStart[h] <= last) {
+                    return false;
+                }
+                for (int k = 0; k <= last; k++) {
+                    int e = sector.history[sector.historyStart[j] + k];
+                    int f = home.history[home.historyStart[h] + k];
+                    if (sector.logTime[e] != home.logTime[f] || sector.logBounced[e] != home.logBounced[f]
+                            || sector.partner(e, j) != home.partner(f, h)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**Reports the collisions of the window (as found by the owners) in order of time.*/
+    private void report () {
+        int total = 0;
+        for (Sector sector : sectors) {
+            total += sector.logSize;
+        }
+        double[] times = new double[total];
+        int[] from = new int[total]; // sector of each collision
+        int[] entry = new int[total]; // and its entry in the sector's log
+        int n = 0;
+        for (int s = 0; s < sectors.length; s++) {
+            Sector sector = sectors[s];
+            for (int e = 0; e < sector.logSize; e++) {
+                int a = sector.ids[sector.logA[e]];
+                int b = (sector.logB[e] >= 0) ? sector.ids[sector.logB[e]] : a;
+                if (owner[Math.min(a, b)] == s) { // a collision between two sectors is reported by one
+                    times[n] = sector.logTime[e];
+                    from[n] = s;
+                    entry[n] = e;
+                    n++;
+                }
+            }
+        }
+        Integer[] order = new Integer[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (x, y) -> Double.compare(times[x], times[y])); // stable
+
+        for (int k : order) {
+            Sector sector = sectors[from[k]];
+            int e = entry[k];
+            ParticleN a = particles[sector.ids[sector.logA[e]]];
+            ParticleN b = (sector.logB[e] >= 0) ? particles[sector.ids[sector.logB[e]]] : null;
+            if (!sector.logBounced[e]) {
+                if (listener != null) {
+                    listener.pushedApart(times[k], a, b);
+                }
+                continue;
+            }
+            collisionCount++;
+            if (b != null) {
+                a.handleBinaryCollision(b);
+            }
+            if (listener != null) {
+                listener.collided(times[k], a, b, (b == null) ? -1 - sector.logB[e] : -1);
+            }
+        }
+    }
+
+    /**Rolls back: simulates the window up to time end with a sequential CollisionSystemRN.*/
+    private void simulateSequentially (double end) {
+        CollisionSystemRN cs = new CollisionSystemRN(store, particles, false, false, new HeapEventQueue(), t, cellsPerAxis, gridAxes, 0);
+        cs.listener = new CollisionSystemRN.Listener() {
+            public void collided (double t, ParticleN a, ParticleN b, int N) {
+                collisionCount++;
+                if (listener != null) {
+                    listener.collided(t, a, b, N);
+                }
+            }
+
+            @Override
+            public void pushedApart (double t, ParticleN a, ParticleN b) {
+                if (listener != null) {
+                    listener.pushedApart(t, a, b);
+                }
+            }
+        };
+        cs.advance(end - t);
+    }
+
+    /**
+     * One sector: its particles and halo copies for the current window, the system
+     * simulating them, and the log of their collisions.
+     */
+    private final class Sector implements Callable<Void>, CollisionSystemRN.Listener {
+        private int[] ids = new int[16]; // index (in the store) of every local particle
+        private int size = 0; // number of local particles
+        private final int[] local; // local index of every particle in the store, or -1
+        private double end; // end of the window
+        private ParticleStore copy; // the local particles
+        private double[] start = new double[16]; // coordinate along the axis of every local particle at the start
+        private double[] shift = new double[16]; // farthest every local particle got from there along the axis
+
+        /*The log: one entry per collision, in order of time.*/
+        private double[] logTime = new double[16];
+        private int[] logA = new int[16], logB = new int[16]; // local indices; logB is -1-N for a wall in the Nth axis
+        private boolean[] logBounced = new boolean[16]; // false if the particles were pushed apart instead
+        private int logSize = 0;
+
+        /*The history of every local particle: its log entries, history[historyStart[j]..historyStart[j+1]-1].*/
+        private int[] historyStart = new int[17];
+        private int[] history = new int[16];
+
+        private Sector () {
+            local = new int[store.size];
+            Arrays.fill(local, -1);
+        }
+
+        /**Adds particle i of the store to this sector for the current window.*/
+        private void add (int i) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * size);
+            }
+            local[i] = size;
+            ids[size++] = i;
+        }
+
+        /**Forgets the local particles (until the next window).*/
+        private void clear () {
+            for (int j = 0; j < size; j++) {
+                local[ids[j]] = -1;
+            }
+            copy = null;
+        }
+
+        /**Returns the partner of local particle j in log entry e: its index in the store,
+         * or -1-N for a wall in the Nth axis.*/
+        private int partner (int e, int j) {
+            int other = (logA[e] == j) ? logB[e] : logA[e];
+            return (other >= 0) ? ids[other] : other;
+        }
+
+        /**Simulates the local particles up to the end of the window.*/
+        @Override
+        public Void call () {
+            copy = new ParticleStore(DIM, size);
+            for (int j = 0; j < size; j++) {
+                copy.copy(j, store, ids[j]);
+            }
+            if (start.length < size) {
+                start = new double[size];
+                shift = new double[size];
+            }
+            for (int j = 0; j < size; j++) {
+                start[j] = copy.position(j, axis, t);
+                shift[j] = 0;
+            }
+            logSize = 0;
+
+            CollisionSystemRN cs = new CollisionSystemRN(copy, copy.views(), false, false, new HeapEventQueue(),
+                    t, cellsPerAxis, gridAxes, 0);
+            cs.listener = this;
+            cs.advance(end - t);
+
+            for (int j = 0; j < size; j++) {
+                moved(j, end);
+            }
+            index();
+            return null;
+        }
+
+        /**Updates how far local particle j got, given where it is at time t.*/
+        private void moved (int j, double t) {
+            shift[j] = Math.max(shift[j], Math.abs(copy.position(j, axis, t) - start[j]));
+        }
+
+        @Override
+        public void collided (double t, ParticleN a, ParticleN b, int N) {
+            log(t, a, (b != null) ? b.id : -1 - N, true);
+        }
+
+        @Override
+        public void pushedApart (double t, ParticleN a, ParticleN b) {
+            log(t, a, b.id, false);
+        }
+
+        private void log (double t, ParticleN a, int b, boolean bounced) {
+            if (logSize == logTime.length) {
+                logTime = Arrays.copyOf(logTime, 2 * logSize);
+                logA = Arrays.copyOf(logA, 2 * logSize);
+                logB = Arrays.copyOf(logB, 2 * logSize);
+                logBounced = Arrays.copyOf(logBounced, 2 * logSize);
+            }
+            logTime[logSize] = t;
+            logA[logSize] = a.id;
+            logB[logSize] = b;
+            logBounced[logSize] = bounced;
+            logSize++;
+            moved(a.id, t);
+            if (b >= 0) {
+                moved(b, t);
+            }
+        }
+
+        /**Sorts the log entries into the histories of the particles (counting sort, so they stay in order).*/
+        private void index () {
+            if (historyStart.length < size + 1) {
+                historyStart = new int[size + 1];
+            }
+            Arrays.fill(historyStart, 0, size + 1, 0);
+            for (int e = 0; e < logSize; e++) {
+                historyStart[logA[e] + 1]++;
+                if (logB[e] >= 0) {
+                    historyStart[logB[e] + 1]++;
+                }
+            }
+            for (int j = 0; j < size; j++) {
+                historyStart[j + 1] += historyStart[j];
+            }
+            if (history.length < historyStart[size]) {
+                history = new int[historyStart[size]];
+            }
+            int[] next = Arrays.copyOf(historyStart, size);
+            for (int e = 0; e < logSize; e++) {
+                history[next[logA[e]]++] = e;
+                if (logB[e] >= 0) {
+                    history[next[logB[e]]++] = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the sector engine against CollisionSystemRN: simulates the same random particles
+     * with both and compares the collision history of every particle (partners in the same order,
+     * at times equal up to rounding errors).
+     * Usage: {@code java SectorCollisionSystem [DIM] [PNUM] [TIME] [SECTORS] [SEED]}
+     * (defaults: 3 2000 5 4 42).
+     */
+    public static void main (String[] args) {
+        int N = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        int n = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        double time = (args.length > 2) ? Double.parseDouble(args[2]) : 5;
+        int sectorCount = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42;
+
+        History sequential = new History(n);
+        ParticleN[] parts = randomParticles(N, n, seed);
+        long start = System.nanoTime();
+        CollisionSystemRN cs = new CollisionSystemRN(parts, N, false, false, new HeapEventQueue());
+        cs.listener = sequential;
+        cs.advance(time);
+        double sequentialSeconds = (System.nanoTime() - start) / 1e9;
+
+        History parallel = new History(n);
+        parts = randomParticles(N, n, seed);
+        start = System.nanoTime();
+        SectorCollisionSystem scs = new SectorCollisionSystem(parts, N, 0, sectorCount);
+        scs.listener = parallel;
+        scs.advance(time);
+        scs.shutdown();
+        double parallelSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(Locale.ROOT,
+                "sequential: %d collisions in %.3f s; %d sectors: %d collisions in %.3f s (%d windows, %d rolled back)",
+                sequential.count, sequentialSeconds, sectorCount, scs.collisionCount(), parallelSeconds,
+                scs.windows(), scs.rollbacks()));
+        String mismatch = sequential.compare(parallel);
+        if (mismatch != null) {
+            System.out.println("The collision histories don't match: " + mismatch);
+            System.exit(1);
+        }
+        System.out.println(String.format(Locale.ROOT, "The collision histories match (largest time difference: %.3g).",
+                sequential.maxDifference));
+    }
+
+    /**Returns n random particles that don't overlap (pushing overlapping particles apart
+     * would make the histories differ from the start).*/
+    private static ParticleN[] randomParticles (int N, int n, long seed) {
+        StdRandom.setSeed(seed);
+        ParticleN[] parts = new ParticleN[n];
+        for (int i = 0; i < n; i++) {
+            boolean overlaps;
+            do {
+                parts[i] = new ParticleN(N);
+                overlaps = false;
+                for (int j = 0; j < i && !overlaps; j++) {
+                    double drdr = 0;
+                    for (int k = 0; k < N; k++) {
+                        double dr = parts[i].position(k) - parts[j].position(k);
+                        drdr += dr * dr;
+                    }
+                    double sigma = parts[i].radius + parts[j].radius;
+                    overlaps = drdr <= sigma * sigma;
+                }
+            } while (overlaps);
+        }
+        return parts;
+    }
+
+    /**The collision history of every particle, for {@link #main}.*/
+    private static final class History implements CollisionSystemRN.Listener {
+        private static final double TOLERANCE = 1e-6; // relative difference allowed between times
+        private final ArrayList<ArrayList<double[]>> entries = new ArrayList<>(); // per particle: {time, partner}
+        private int count = 0;
+        private double maxDifference = 0;
+
+        private History (int n) {
+            for (int i = 0; i < n; i++) {
+                entries.add(new ArrayList<>());
+            }
+        }
+
+        @Override
+        public void collided (double t, ParticleN a, ParticleN b, int N) {
+            count++;
+            entries.get(a.id).add(new double[] {t, (b != null) ? b.id : -1 - N});
+            if (b != null) {
+                entries.get(b.id).add(new double[] {t, a.id});
+            }
+        }
+
+        /**Returns a description of the first difference from the other history, or null if there's none.*/
+        private String compare (History that) {
+            for (int i = 0; i < entries.size(); i++) {
+                ArrayList<double[]> mine = this.entries.get(i), theirs = that.entries.get(i);
+                for (int k = 0; k < Math.max(mine.size(), theirs.size()); k++) {
+                    if (k >= mine.size() || k >= theirs.size()) {
+                        return "particle " + i + " had " + mine.size() + " and " + theirs.size() + " collisions";
+                    }
+                    double[] x = mine.get(k), y = theirs.get(k);
+                    double difference = Math.abs(x[0] - y[0]);
+                    maxDifference = Math.max(maxDifference, difference);
+                    if (x[1] != y[1] || difference > TOLERANCE * Math.max(1, Math.abs(x[0]))) {
+                        return "collision " + k + " of particle " + i + " was " + Arrays.toString(x)
+                                + " and " + Arrays.toString(y) + " ({time, partner})";
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
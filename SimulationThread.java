@@ -0,0 +1,173 @@
+import java.lang.invoke.VarHandle;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ *  Runs a collision system on its own thread, in real time (one unit of simulated time
+ *  per second), so that a burst of collisions doesn't stall the renderer and vice versa.
+ *
+ *  The system is advanced in fixed steps of {@link #STEP}. After every step, the positions
+ *  of all particles in 3 chosen dimensions (plus an int tag per particle, e.g. its color
+ *  or status) are written to a ring of snapshots. The renderer copies them out with
+ *  {@link #read}, optionally interpolating between the last two snapshots.
+ *  Only the simulation thread ever touches the collision system once it's started.
+ *
+ *  The ring is lock-free: the simulation thread only ever writes the slot after the last
+ *  published one, and a reader checks afterwards that it wasn't lapped while copying
+ *  (like a seqlock), retrying if it was.
+ */
+public class SimulationThread extends Thread {
+    public static final double STEP = 1.0/60; // simulated time per step
+    private static final int RING = 4; // number of snapshots (2 being read, 1 being written, 1 spare)
+    private static final double MAX_LAG = 0.25; // drop simulated time if we fall further behind
+
+    private final CollisionEngine cs;
+    private final int[] dims; // the 3 dimensions to record
+    private final DoubleConsumer afterStep; // called with STEP after every step
+    private final IntUnaryOperator tag; // particle index -> tag
+    private final int n; // number of particles
+
+    private final double[] times = new double[RING]; // simulated time of each snapshot
+    private final float[][] xyz = new float[RING][]; // 3 coordinates per particle
+    private final int[][] tags = new int[RING][];
+    private volatile long published = 0; // number of the last complete snapshot (in slot published % RING)
+
+    private final double base; // simulated time when started
+    private volatile long startNanos; // wall-clock time corresponding to base
+    private volatile boolean running = true;
+
+    /**
+     * Prepares a thread to run the collision system (call {@link #start} to run it).
+     * The current state is recorded as the first snapshot.
+     *
+     * @param cs the collision system
+     * @param dims the 3 dimensions of the positions to record
+     * @param afterStep called on the simulation thread with the step size after every step
+     * @param tag maps a particle index to the tag to record for it
+     */
+    public SimulationThread (CollisionEngine cs, int[] dims, DoubleConsumer afterStep, IntUnaryOperator tag) {
+        super("simulation");
+        setDaemon(true);
+        this.cs = cs;
+        this.dims = dims.clone();
+        this.afterStep = afterStep;
+        this.tag = tag;
+        this.n = cs.particles().length;
+        for (int i = 0; i < RING; i++) {
+            xyz[i] = new float[3 * n];
+            tags[i] = new int[n];
+        }
+        this.base = cs.time();
+        record(0);
+    }
+
+    /**The simulated time that corresponds to the current wall-clock time.*/
+    private double clock () {
+        return base + (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**Writes the current state of the system to snapshot k (but doesn't publish it).*/
+    private void record (long k) {
+        int slot = (int) (k % RING);
+        double t = cs.time();
+        float[] pos = xyz[slot];
+        int[] tg = tags[slot];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < 3; j++) {
+                pos[3*i + j] = (float) cs.store().position(i, dims[j], t);
+            }
+            tg[i] = tag.applyAsInt(i);
+        }
+        times[slot] = t;
+    }
+
+    @Override
+    public void start () {
+        startNanos = System.nanoTime();
+        super.start();
+    }
+
+    /**Advances the system one step at a time, staying (at most) one step ahead of the wall clock.*/
+    @Override
+    public void run () {
+        long k = published;
+        while (running) {
+            double ahead = cs.time() - clock();
+            if (ahead > 0) { /*The next step would be more than one step ahead: wait.*/
+                try {
+                    Thread.sleep((long) (ahead * 1000), (int) ((ahead * 1e9) % 1e6));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            if (-ahead > MAX_LAG) { /*Too far behind to ever catch up: let the wall clock go.*/
+                startNanos += (long) ((-ahead - STEP) * 1e9);
+            }
+
+            cs.advance(STEP);
+            afterStep.accept(STEP);
+            k++;
+            record(k);
+            published = k;
+        }
+    }
+
+    /**Stops the simulation thread after the current step, and waits for it to stop,
+     * so the collision system can be used from the calling thread afterwards.*/
+    public void shutdown () {
+        running = false;
+        interrupt();
+        if (Thread.currentThread() == this) {
+            return;
+        }
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true; // keep waiting, but pass the interruption on
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies the latest state into the given arrays: 3 coordinates per particle into pos,
+     * and the tag of each particle into tg.
+     * With interpolation, positions are linearly interpolated at the current wall-clock time
+     * between the last two snapshots (the simulation thread stays up to one step ahead).
+     * Returns the simulated time of the copied state.
+     */
+    public double read (boolean interpolate, float[] pos, int[] tg) {
+        while (true) {
+            long p = published;
+            int cur = (int) (p % RING);
+            double shown = times[cur];
+            float[] now = xyz[cur];
+            if (interpolate && p > 0) {
+                int prev = (int) ((p - 1) % RING);
+                double t0 = times[prev];
+                double alpha = (shown > t0) ? (clock() - t0) / (shown - t0) : 1;
+                alpha = Math.max(0, Math.min(1, alpha));
+                float a = (float) alpha;
+                float[] before = xyz[prev];
+                for (int i = 0; i < 3 * n; i++) {
+                    pos[i] = before[i] + a * (now[i] - before[i]);
+                }
+                shown = t0 + alpha * (shown - t0);
+            } else {
+                System.arraycopy(now, 0, pos, 0, 3 * n);
+            }
+            System.arraycopy(tags[cur], 0, tg, 0, n);
+
+            /*The slot being written is published+1; make sure it wasn't one of ours.*/
+            VarHandle.acquireFence();
+            if (published - p <= RING - 3) {
+                return shown;
+            }
+        }
+    }
+}
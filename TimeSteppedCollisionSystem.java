@@ -0,0 +1,245 @@
+import java.util.stream.IntStream;
+
+/**
+ *  A fixed-time-step alternative to {@link CollisionSystemRN}. Instead of predicting
+ *  when the next collision happens, every step moves all particles ahead by the step size,
+ *  then looks for the particles that ran into each other or into a wall, and resolves
+ *  them with the same methods as the event-driven system:
+ *
+ *    - overlapping particles that are still approaching bounce off each other
+ *      ({@link ParticleN#bounceOff}), and are then pushed out of each other ({@link ParticleN#getOut});
+ *    - particles touching a wall and moving into it bounce off it ({@link ParticleN#bounceOffNWall}).
+ *
+ *  Moving the particles and finding the overlapping pairs (among the neighbours in a
+ *  {@link CellGrid}) are done with parallel streams over blocks of particles. The pairs are
+ *  then resolved one by one, in a fixed order, since bouncing calls the particles'
+ *  {@link ParticleN#handleBinaryCollision}, which needn't be thread-safe (it's cheap anyway).
+ *
+ *  There is no event queue to serialize on, so this scales with the number of particles
+ *  and cores, at the price of accuracy: collisions are resolved up to one step late, and
+ *  particles that would go through each other within one step are missed. The step should
+ *  be well below (smallest radius) / (top speed).
+ */
+public class TimeSteppedCollisionSystem implements CollisionEngine {
+    private static final int BLOCK = 1024; // particles per parallel task
+
+    private final int DIM;
+    private final double step; // the (longest) time step
+    private final CellGrid grid; // broad phase; null if every pair should be checked
+    private final Finder[] finders; // one per block of particles
+    private double t; // simulation clock time
+    private long collisionCount = 0; // number of bounces so far
+    final ParticleStore store; // the state of all particles
+    ParticleN[] particles; // the array of particles (views of the store, by index)
+
+    /**
+     * Initializes a system with the specified collection of particles.
+     * The individual particles will be mutated during the simulation.
+     * Their state is moved into a new {@link ParticleStore}, which they become views of.
+     *
+     * @param particles the array of particles
+     * @param N the number of spatial dimensions
+     * @param step the time step
+     * @throws IllegalArgumentException if the step isn't positive
+     */
+    public TimeSteppedCollisionSystem (ParticleN[] particles, int N, double step) {
+        this(particles, N, step, 0);
+    }
+
+    /**
+     * Initializes a system with the specified collection of particles, starting at time t0
+     * (e.g. to resume from a {@link Checkpoint}): their positions are taken to be the ones at t0.
+     *
+     * @param particles the array of particles
+     * @param N the number of spatial dimensions
+     * @param step the time step
+     * @param t0 the initial simulation time
+     * @throws IllegalArgumentException if the step isn't positive
+     */
+    public TimeSteppedCollisionSystem (ParticleN[] particles, int N, double step, double t0) {
+        if (!(step > 0)) {
+            throw new IllegalArgumentException("The time step must be positive.");
+        }
+        this.particles = particles.clone(); // defensive copy
+        this.store = CollisionSystemRN.storeOf(this.particles, N, t0);
+        this.t = t0;
+        this.DIM = N;
+        this.step = step;
+        this.grid = CellGrid.create(store);
+        this.finders = new Finder[(store.size + BLOCK - 1) / BLOCK];
+        for (int k = 0; k < finders.length; k++) {
+            finders[k] = new Finder(k * BLOCK, Math.min(store.size, (k + 1) * BLOCK));
+        }
+    }
+
+    /**Returns the current simulation time.*/
+    public double time () {
+        return t;
+    }
+
+    public ParticleStore store () {
+        return store;
+    }
+
+    public ParticleN[] particles () {
+        return particles;
+    }
+
+    /**Returns the number of collisions (between particles or with walls) so far.*/
+    public long collisionCount () {
+        return collisionCount;
+    }
+
+    /**
+     * Advances the simulation of the system of particles in {@code dt} units of time,
+     * in steps of the step size (the last one may be shorter).
+     * All particles are synchronized with the clock afterwards.
+     *
+     * @param dt the amount of time to advance
+     */
+    public void advance (double dt) {
+        double upto = t + dt;
+        while (t < upto) {
+            boolean last = (upto - t <= step);
+            step(last ? upto : t + step);
+        }
+    }
+
+    /**Moves everybody up to time next and resolves the collisions.*/
+    private void step (double next) {
+        double h = next - t;
+        IntStream.range(0, finders.length).parallel().forEach(k -> finders[k].move(next));
+        t = next;
+        if (grid != null) {
+            grid.rebuild();
+        }
+        IntStream.range(0, finders.length).parallel().forEach(k -> finders[k].find());
+
+        for (Finder f : finders) {
+            collisionCount += f.wallBounces;
+            for (int p = 0; p < f.pairCount; p += 2) {
+                resolve(particles[f.pairs[p]], particles[f.pairs[p + 1]], h);
+            }
+        }
+    }
+
+    /**
+     * Resolves the overlap of a and b, found at the end of a step of length h.
+     * If they're approaching and ran into each other during the step, they're moved back
+     * to when they touched, bounce off each other there, and move on to now.
+     * Otherwise (they're moving apart, or were already inside each other), they're treated
+     * like a getOut event of the event-driven system.
+     */
+    private void resolve (ParticleN a, ParticleN b, double h) {
+        if (a.isImmovable() && b.isImmovable()) {
+            return;
+        }
+        double[] r = store.r, v = store.v;
+        int oa = a.id * DIM, ob = b.id * DIM;
+        double dvdr = 0, dvdv = 0, drdr = 0;
+        for (int i = 0; i < DIM; i++) {
+            double dr = r[ob + i] - r[oa + i];
+            double dv = v[ob + i] - v[oa + i];
+            dvdr += dv * dr;
+            dvdv += dv * dv;
+            drdr += dr * dr;
+        }
+        double sigma = a.radius + b.radius;
+        if (drdr >= sigma*sigma) { /*Somebody else already got them out.*/
+            return;
+        }
+        if (dvdr >= 0) {
+            a.getOut(b);
+            return;
+        }
+
+        /*How long ago they touched: |dr - dv*ago| = sigma.*/
+        double ago = (dvdr + Math.sqrt(dvdr*dvdr - dvdv * (drdr - sigma*sigma))) / dvdv;
+        if (ago > h) {
+            if (!a.getOut(b)) {
+                a.bounceOff(b);
+                collisionCount++;
+            }
+            return;
+        }
+        a.moveTo(t - ago);
+        b.moveTo(t - ago);
+        a.bounceOff(b);
+        collisionCount++;
+        a.moveTo(t);
+        b.moveTo(t);
+    }
+
+    /**
+     * Moves a block of particles and finds their collisions. It has its own scratch space,
+     * so different threads can use different Finders at the same time.
+     */
+    private final class Finder {
+        private final int from, to; // the particles in the block
+        private final int[] stencil = new int[DIM]; // scratch for the grid's neighbour enumeration
+        private final java.util.function.IntConsumer visitor = this::check;
+        private int a; // the particle whose neighbours are being checked
+        private int[] pairs = new int[16]; // overlapping pairs found: a, b, a, b...
+        private int pairCount = 0; // 2 * number of pairs
+        private int wallBounces = 0;
+
+        private Finder (int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**Moves the block up to time next, bouncing the particles that reached a wall.*/
+        private void move (double next) {
+            wallBounces = 0;
+            for (int i = from; i < to; i++) {
+                ParticleN p = particles[i];
+                p.moveTo(next);
+                if (p.isImmovable()) {
+                    continue;
+                }
+                for (int N = 0; N < DIM; N++) {
+                    double pos = store.r[i*DIM + N], vel = store.v[i*DIM + N];
+                    if ((vel > 0 && pos > ParticleN.BORDERCOORDMAX - p.radius)
+                            || (vel < 0 && pos < ParticleN.BORDERCOORDMIN + p.radius)) {
+                        p.bounceOffNWall(N);
+                        wallBounces++;
+                    }
+                }
+            }
+        }
+
+        /**Finds the overlapping pairs whose first particle is in the block (so each pair once).*/
+        private void find () {
+            pairCount = 0;
+            for (a = from; a < to; a++) {
+                if (grid == null) {
+                    for (int b = a + 1; b < store.size; b++) {
+                        check(b);
+                    }
+                } else {
+                    grid.forEachNeighbour(a, stencil, visitor);
+                }
+            }
+        }
+
+        /**Records the pair (a, b) if b comes after a and they overlap (and aren't both immovable).*/
+        private void check (int b) {
+            if (b <= a || (store.immovable[a] && store.immovable[b])) {
+                return;
+            }
+            double drdr = 0;
+            for (int i = 0; i < DIM; i++) {
+                double dr = store.r[b*DIM + i] - store.r[a*DIM + i];
+                drdr += dr * dr;
+            }
+            double sigma = store.radius[a] + store.radius[b];
+            if (drdr < sigma * sigma) {
+                if (pairCount == pairs.length) {
+                    pairs = java.util.Arrays.copyOf(pairs, 2 * pairs.length);
+                }
+                pairs[pairCount++] = a;
+                pairs[pairCount++] = b;
+            }
+        }
+    }
+}
@@ -5,5 +5,10 @@ _JAVA="java -classpath "$_CLASSPATH""
 
 rm *.class
 $_JAVAC HigherDimensionPandemic.java
-$_JAVA HigherDimensionPandemic  3  50 --textured-balls --social-distancing 0.2 --space
+#optional SIMD kernels (needs the Vector API, JDK 16+); the scalar ones are used otherwise
+_VECTOR=""
+if $_JAVAC --add-modules jdk.incubator.vector CouveVector.java 2>/dev/null; then
+    _VECTOR="--add-modules jdk.incubator.vector"
+fi
+$_JAVA $_VECTOR HigherDimensionPandemic  3  50 --textured-balls --social-distancing 0.2 --space
 